@@ -0,0 +1,85 @@
+package me.hwei.mctool.world;
+
+import java.io.File;
+import java.io.IOException;
+
+public class RegionFileForBackup extends RegionFileBase {
+
+    public static final int CHUNK_COUNT = SECTOR_INTS;
+
+    private final int timestamps[];
+
+    public RegionFileForBackup(File path) throws IOException {
+        super(path, "r");
+        if (file == null) {
+            throw new IOException("Could not open region " + path.getName());
+        }
+        timestamps = new int[SECTOR_INTS];
+        file.seek(SECTOR_BYTES);
+        for (int i = 0; i < SECTOR_INTS; ++i) {
+            timestamps[i] = file.readInt();
+        }
+    }
+
+    /* is this file large enough to hold the offset and timestamp tables? */
+    public static boolean hasTables(File path) {
+        return path.length() >= SECTOR_BYTES * 2;
+    }
+
+    /* raw offset table entry of a chunk, given its index in the tables */
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /* last time a chunk was saved, in seconds, given its index in the tables */
+    public int getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /*
+     * gets the sectors of a chunk as stored in the region (length, compression
+     * version and compressed data), or null if the chunk is not there or its
+     * offset or length is invalid
+     */
+    public synchronized byte[] getChunkBytes(int index) throws IOException {
+        int offset = offsets[index];
+        if (offset == 0) {
+            return null;
+        }
+
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+
+        if (sectorNumber < 2 || sectorNumber + numSectors > sectorFree.size()) {
+            return null;
+        }
+
+        file.seek((long) sectorNumber * SECTOR_BYTES);
+        int length = file.readInt();
+
+        if (length < 1 || length > SECTOR_BYTES * numSectors - 4) {
+            return null;
+        }
+
+        byte[] data = new byte[length + 4];
+        file.seek((long) sectorNumber * SECTOR_BYTES);
+        file.readFully(data);
+        return data;
+    }
+
+    /* offset in bytes of the sectors of a chunk, given its raw offset table entry */
+    public static long getPosition(int offset) {
+        return (long) (offset >> 8) * SECTOR_BYTES;
+    }
+
+    /* timestamp table entry position of a chunk, given its index in the tables */
+    public static long getTimestampPosition(int index) {
+        return SECTOR_BYTES + index * 4;
+    }
+
+    /* only closes the file: unlike the other regions, a backup never deletes an empty region */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
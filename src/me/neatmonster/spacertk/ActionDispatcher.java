@@ -0,0 +1,121 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import me.neatmonster.spacemodule.api.InvalidArgumentsException;
+import me.neatmonster.spacemodule.api.UnhandledActionException;
+import me.neatmonster.spacertk.actions.ActionOptions;
+
+/**
+ * Executes the actions called by the panel, recording their metrics, caching their results and coalescing
+ * identical concurrent calls when their {@link ActionOptions} allow it
+ */
+final class ActionDispatcher {
+    private static final CallCoalescer COALESCER = new CallCoalescer();
+
+    private ActionDispatcher() {
+    }
+
+    /**
+     * Executes an action
+     * @param method Name of the action
+     * @param arguments Arguments of the action
+     * @return Result of the action, null if it is unknown or failed
+     */
+    static Object execute(final String method, final Object[] arguments) {
+        if (!SpaceRTK.getInstance().actionsManager.contains(method))
+            return null;
+        try {
+            return executeOrThrow(method, arguments);
+        } catch (final InvalidArgumentsException e) {
+            e.printStackTrace();
+        } catch (final UnhandledActionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Executes an action, letting its caller handle a failure
+     * @param method Name of the action
+     * @param arguments Arguments of the action
+     * @return Result of the action
+     * @throws InvalidArgumentsException If the arguments do not match the action
+     * @throws UnhandledActionException If the action is unknown
+     */
+    static Object executeOrThrow(final String method, final Object[] arguments) throws InvalidArgumentsException,
+            UnhandledActionException {
+        final SpaceRTK rtk = SpaceRTK.getInstance();
+        final ActionOptions options = rtk.actionOptions.get(method);
+        final boolean cached = options != null && options.cacheTtl() > 0L;
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long generation = 0L;
+            if (cached) {
+                final Object result = rtk.resultCache.get(method, options, arguments);
+                if (result != null) {
+                    failed = false;
+                    return result;
+                }
+                generation = rtk.resultCache.generation(method, options);
+            }
+            final Object result = invoke(rtk, method, arguments, options);
+            failed = false;
+            if (cached && result != null)
+                rtk.resultCache.put(method, options, arguments, result, generation);
+            if (options != null)
+                for (final String invalidated : options.invalidates())
+                    rtk.resultCache.invalidate(invalidated);
+            return result;
+        } finally {
+            rtk.actionMetrics.record(method, (System.nanoTime() - start) / 1000L, failed);
+        }
+    }
+
+    /**
+     * Runs an action, sharing the execution of an identical call in flight if the action is coalesced
+     */
+    private static Object invoke(final SpaceRTK rtk, final String method, final Object[] arguments,
+            final ActionOptions options) throws InvalidArgumentsException, UnhandledActionException {
+        if (options == null || !options.coalesce())
+            return rtk.actionsManager.execute(method, arguments);
+        try {
+            return COALESCER.execute(method, ResultCache.keyOf(method, arguments), new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return rtk.actionsManager.execute(method, arguments);
+                }
+            });
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof InvalidArgumentsException)
+                throw (InvalidArgumentsException) cause;
+            if (cause instanceof UnhandledActionException)
+                throw (UnhandledActionException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
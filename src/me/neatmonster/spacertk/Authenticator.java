@@ -0,0 +1,74 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.neatmonster.spacertk.utilities.Utilities;
+
+/**
+ * Computes and checks the keys used to authenticate calls between the panel, SpaceRTK and SpaceBukkit.
+ * The key of a method is the SHA-256 of the method followed by the salt; keys are cached per method and
+ * forgotten whenever the salt changes.
+ */
+public class Authenticator {
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<String, String>();
+    private volatile String                         salt;
+
+    /**
+     * Gets the key of a method for the current salt
+     * @param method Method to get the key of
+     * @return Key of the method
+     * @throws NoSuchAlgorithmException If SHA-256 is not supported
+     */
+    public String getKey(final String method) throws NoSuchAlgorithmException {
+        final String currentSalt = SpaceRTK.getInstance().salt;
+        if (currentSalt != salt && (currentSalt == null || !currentSalt.equals(salt))) {
+            keys.clear();
+            salt = currentSalt;
+        }
+        String key = keys.get(method);
+        if (key == null) {
+            key = Utilities.crypt(method + currentSalt);
+            if (keys.size() >= MAX_CACHED_KEYS)
+                keys.clear(); // Methods of "multiple" calls are arbitrary lists, do not let them pile up.
+            keys.put(method, key);
+        }
+        return key;
+    }
+
+    /**
+     * Checks the key supplied with a call
+     * @param method Method that was called
+     * @param key Key supplied by the caller, may be null
+     * @return If the key is valid for the method
+     */
+    public boolean isValid(final String method, final String key) {
+        if (key == null)
+            return false;
+        try {
+            final String expected = getKey(method);
+            // Compare in constant time so the key cannot be guessed one character at a time.
+            return MessageDigest.isEqual(expected.getBytes("US-ASCII"), key.getBytes("US-ASCII"));
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
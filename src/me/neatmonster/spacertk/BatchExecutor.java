@@ -0,0 +1,138 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
+
+/**
+ * Executes the actions of a "multiple" call, running the parallelizable ones concurrently
+ */
+class BatchExecutor {
+    private static final long WORKER_KEEP_ALIVE = 60L; //Seconds an idle worker is kept around
+
+    private final ThreadPoolExecutor workers;
+    private final long               actionTimeout;
+
+    /**
+     * Creates a new batch executor
+     * @param threads Number of actions of all batches that may run at once
+     * @param queueSize Number of actions waiting for a thread before they run on the calling thread instead
+     * @param actionTimeout Milliseconds a parallel action may run before its result is given up
+     */
+    BatchExecutor(final int threads, final int queueSize, final long actionTimeout) {
+        this.actionTimeout = actionTimeout;
+        workers = new ThreadPoolExecutor(threads, threads, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("SpaceRTK BatchWorker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executes a batch of actions. Parallelizable actions are started as soon as they are reached; an action
+     * that is not parallelizable waits for all the actions before it and runs alone on the calling thread.
+     * @param methods Names of the actions
+     * @param arguments Arguments of each action
+     * @return Results in the same order as the actions, null for actions that failed, are unknown or timed out
+     */
+    List<Object> execute(final String[] methods, final Object[][] arguments) {
+        final Object[] results = new Object[methods.length];
+        final List<Pending> pending = new ArrayList<Pending>(methods.length);
+        for (int i = 0; i < methods.length; i++) {
+            final String method = methods[i];
+            if (!SpaceRTK.getInstance().actionsManager.contains(method))
+                continue;
+            final ActionCall call = new ActionCall(method, arguments[i]);
+            if (methods.length > 1 && SpaceRTK.getInstance().actionOptions.isParallel(method))
+                pending.add(new Pending(i, workers.submit(call)));
+            else {
+                collect(pending, results);
+                results[i] = call.call();
+            }
+        }
+        collect(pending, results);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Waits for the results of the pending actions
+     */
+    private void collect(final List<Pending> pending, final Object[] results) {
+        for (final Pending p : pending) {
+            try {
+                final long remaining = p.deadline - System.currentTimeMillis();
+                results[p.index] = p.future.get(Math.max(0L, remaining), TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                p.future.cancel(true);
+            } catch (final InterruptedException e) {
+                p.future.cancel(true);
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Stops the batch workers
+     */
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * A single action of a batch
+     */
+    private static class ActionCall implements Callable<Object> {
+        private final String   method;
+        private final Object[] arguments;
+
+        ActionCall(final String method, final Object[] arguments) {
+            this.method = method;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public Object call() {
+            return ActionDispatcher.execute(method, arguments);
+        }
+    }
+
+    /**
+     * An action of a batch running on a worker
+     */
+    private class Pending {
+        final int       index;
+        final Future<?> future;
+        final long      deadline;
+
+        Pending(final int index, final Future<?> future) {
+            this.index = index;
+            this.future = future;
+            deadline = System.currentTimeMillis() + actionTimeout;
+        }
+    }
+}
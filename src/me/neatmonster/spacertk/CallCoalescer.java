@@ -0,0 +1,56 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares a single execution between concurrent identical calls.
+ * The first call of a key runs on its own thread; calls of the same key arriving while it runs wait for it and
+ * receive its result instead of running again. Once it completes, the next call runs afresh.
+ */
+class CallCoalescer {
+    private final ConcurrentMap<String, FutureTask<Object>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    /**
+     * Runs a call, or joins the identical call already running
+     * @param action Name of the action, used to count the joined calls
+     * @param key Key identifying identical calls
+     * @param call Call to run
+     * @return Result of the call
+     * @throws ExecutionException If the call threw an exception
+     * @throws InterruptedException If the thread was interrupted while waiting for another call
+     */
+    Object execute(final String action, final String key, final Callable<Object> call)
+            throws ExecutionException, InterruptedException {
+        final FutureTask<Object> task = new FutureTask<Object>(call);
+        final FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            SpaceRTK.getInstance().actionMetrics.recordCoalesced(action);
+            return running.get();
+        }
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return task.get();
+    }
+}
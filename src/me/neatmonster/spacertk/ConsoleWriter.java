@@ -0,0 +1,163 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes commands to the console of the server. Commands sent within a short window of each other are written
+ * together, in the order they were sent, with a single write and flush of the console stream.
+ */
+public class ConsoleWriter {
+    private final ScheduledExecutorService scheduler;
+    private final long                     window;
+    private final Object                   writeLock = new Object();
+    private final AtomicLong               commands  = new AtomicLong();
+    private final AtomicLong               batches   = new AtomicLong();
+    private final AtomicLong               failures  = new AtomicLong();
+    private boolean                        scheduled = false;
+    private boolean                        closed    = false;
+    private Batch                          pending   = new Batch();
+
+    private final Runnable                 flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConsoleWriter.this) {
+                scheduled = false;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * Creates a new console writer
+     * @param scheduler Scheduler to write the batches on
+     * @param window Milliseconds a command may wait for others to be written with
+     */
+    public ConsoleWriter(final ScheduledExecutorService scheduler, final long window) {
+        this.scheduler = scheduler;
+        this.window = window;
+    }
+
+    /**
+     * Queues a command, to be written with the others sent within the batching window
+     * @param command Command to send
+     */
+    public void write(final String command) {
+        enqueue(command);
+        synchronized (this) {
+            if (!closed)
+                return;
+        }
+        flush();
+    }
+
+    /**
+     * Writes a command and every command queued before it, returning once they are written
+     * @param command Command to send
+     * @return If the command was written
+     */
+    public boolean writeAndWait(final String command) {
+        final Batch batch = enqueue(command);
+        flush();
+        return !batch.failed;
+    }
+
+    /**
+     * Writes every queued command on the calling thread. Commands sent afterwards are written as soon as they are
+     * sent, as the scheduler may no longer run the batches.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    /**
+     * Gets the number of commands waiting to be written
+     * @return Queued commands
+     */
+    public synchronized int getQueueDepth() {
+        return pending.commands.size();
+    }
+
+    /**
+     * Gets the commands written so far and how they were batched
+     * @return Queued commands, commands and batches written and batches that could not be written
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("queued", getQueueDepth());
+        result.put("commands", commands.get());
+        result.put("batches", batches.get());
+        result.put("failures", failures.get());
+        return result;
+    }
+
+    private synchronized Batch enqueue(final String command) {
+        pending.commands.add(command.endsWith("\n") ? command : command + "\n");
+        if (!scheduled && !closed) {
+            scheduled = true;
+            scheduler.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+        }
+        return pending;
+    }
+
+    /**
+     * Writes every queued command. Batches are written one at a time, so commands keep the order they were sent in.
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            final Batch batch;
+            synchronized (this) {
+                if (pending.commands.isEmpty())
+                    return;
+                batch = pending;
+                pending = new Batch();
+            }
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (final String command : batch.commands)
+                    bytes.write(command.getBytes("UTF-8"));
+                final OutputStream console = RemoteToolkit.getConsole();
+                console.write(bytes.toByteArray());
+                console.flush();
+                commands.addAndGet(batch.commands.size());
+                batches.incrementAndGet();
+            } catch (final Exception e) {
+                e.printStackTrace();
+                failures.incrementAndGet();
+                batch.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Commands written together, and whether writing them failed
+     */
+    private static class Batch {
+        final List<String> commands = new ArrayList<String>();
+        volatile boolean   failed   = false;
+    }
+}
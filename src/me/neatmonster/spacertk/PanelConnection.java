@@ -0,0 +1,407 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.neatmonster.spacertk.actions.ActionOptionsRegistry;
+import me.neatmonster.spacertk.utilities.ChunkedOutputStream;
+import me.neatmonster.spacertk.utilities.ZIP;
+import me.neatmonster.spacertk.utilities.backup.BackupManager;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Handles a connection accepted by the {@link PanelListener}, answering requests until the panel closes it
+ * or the connection is idle for too long
+ */
+class PanelConnection implements Runnable {
+    private static final int  SO_TIMEOUT      = 30000; //30 seconds
+    private static final long EVENT_HEARTBEAT = 15000L; //Milliseconds without update before a heartbeat is sent
+
+    private final Socket              socket;
+    private final PanelListener       listener;
+    private final int                 idleTimeout;
+    private final int                 maxRequests;
+    private final PanelRequestParser  parser;
+    private final PanelResponseWriter response;
+    private final AtomicBoolean       admitted = new AtomicBoolean();
+    private boolean                   http11;
+
+    /**
+     * Creates a new panel connection
+     * @param socket Socket to read the requests from
+     * @param listener Listener that accepted the connection
+     * @param idleTimeout Milliseconds a persistent connection may stay idle between two requests
+     * @param maxRequests Maximum number of requests served before the connection is closed
+     * @param parser Parser reading the requests of this connection
+     * @param response Writer answering the requests of this connection
+     */
+    PanelConnection(final Socket socket, final PanelListener listener, final int idleTimeout, final int maxRequests,
+            final PanelRequestParser parser, final PanelResponseWriter response) {
+        this.socket = socket;
+        this.listener = listener;
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
+        this.parser = parser;
+        this.response = response;
+    }
+
+    /**
+     * Interprets a command from the panel
+     * @param method Name of the action
+     * @param argumentsString Arguments of the action, as a JSON array
+     * @return result of the action
+     */
+    @SuppressWarnings("unchecked")
+    private static Object interpret(final String method, final String argumentsString) {
+        final List<Object> arguments = (List<Object>) JSONValue.parse(argumentsString);
+        if (arguments == null)
+            return null;
+        return ActionDispatcher.execute(method, arguments.toArray());
+    }
+
+    /**
+     * Submits a command from the panel to run in the background
+     * @param method Name of the action
+     * @param argumentsString Arguments of the action, as a JSON array
+     * @return ID of the task running the action, null if it could not be submitted
+     */
+    @SuppressWarnings("unchecked")
+    private static String submit(final String method, final String argumentsString) {
+        final List<Object> arguments = (List<Object>) JSONValue.parse(argumentsString);
+        if (arguments == null)
+            return null;
+        return SpaceRTK.getInstance().taskManager.submit(method, arguments.toArray());
+    }
+
+    /**
+     * Interprets a command from the panel (multiple)
+     * @param methods Names of the actions
+     * @param argumentsString Arguments of each action, as a JSON array of arrays
+     * @return result of the actions, in the order they were requested
+     */
+    @SuppressWarnings("unchecked")
+    private Object interpretm(final List<Object> methods, final String argumentsString) {
+        final List<Object> arguments = (List<Object>) JSONValue.parse(argumentsString);
+        if (methods == null || arguments == null || arguments.size() < methods.size())
+            return null;
+        final String[] methodArray = new String[methods.size()];
+        final Object[][] argumentsArray = new Object[methods.size()][];
+        for (int i = 0; i < methodArray.length; i++) {
+            methodArray[i] = String.valueOf(methods.get(i));
+            final Object args = arguments.get(i);
+            if (args instanceof List)
+                argumentsArray[i] = ((List<Object>) args).toArray();
+            else {
+                final List<Object> parsed = (List<Object>) JSONValue.parse(String.valueOf(args));
+                argumentsArray[i] = parsed == null ? new Object[0] : parsed.toArray();
+            }
+        }
+        return listener.getBatchExecutor().execute(methodArray, argumentsArray);
+    }
+
+    /**
+     * Counts the connection against the limits of its client, to be given back when it is closed
+     * @return If the client may open this connection
+     */
+    boolean admit() {
+        if (!listener.getRateLimiter().acquireConnection(socket.getInetAddress()))
+            return false;
+        admitted.set(true);
+        return true;
+    }
+
+    /**
+     * Refuses the connection without reading it, answering with the given status
+     * @param status HTTP status, such as "503 Service Unavailable" when the listener is saturated
+     */
+    void reject(final String status) {
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            final OutputStream output = socket.getOutputStream();
+            writeStatus(output, status);
+            output.flush();
+        } catch (final IOException e) {
+            // The client went away, nothing to answer.
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the underlying socket, ignoring any error
+     */
+    void close() {
+        if (admitted.compareAndSet(true, false))
+            listener.getRateLimiter().releaseConnection(socket.getInetAddress());
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            final InputStream input = socket.getInputStream(); // The parser does its own buffering.
+            final OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                final PanelRequest request;
+                try {
+                    request = parser.read(input);
+                } catch (final SocketTimeoutException e) {
+                    break; // Idle for too long, let the connection go.
+                } catch (final PanelRequestException e) {
+                    writeStatus(output, e.getStatus());
+                    break;
+                }
+                if (request == null)
+                    break;
+                http11 = request.http11;
+                keepAlive = request.isKeepAlive();
+                served++;
+                if (served >= maxRequests || listener.getQueuedConnections() > 0)
+                    keepAlive = false; // Give the worker back to the connections waiting for one.
+                keepAlive = handle(request, output, keepAlive);
+                if (!keepAlive || !parser.hasBufferedInput() && input.available() == 0)
+                    output.flush(); // Answers to pipelined requests already read are flushed together.
+                socket.setSoTimeout(idleTimeout);
+            }
+            output.flush();
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Answers a single request
+     * @param request Request sent by the panel
+     * @param output Stream to answer to
+     * @param keepAlive If the connection may be kept open after this request
+     * @return If the connection is kept open after this request
+     * @throws Exception If the request cannot be answered
+     */
+    @SuppressWarnings("unchecked")
+    private boolean handle(final PanelRequest request, final OutputStream output, final boolean keepAlive) throws Exception {
+        final String method = request.getParameter("method");
+        final String arguments = request.getParameter("args");
+        final List<Object> methods = request.path.equals("multiple") && method != null
+                ? (List<Object>) JSONValue.parse(method) : null;
+        final long wait = admitRequest(request.path.equals("call") ? method : null, methods);
+        if (wait > 0L) {
+            output.write(("HTTP/1.1 429 Too Many Requests\r\n"
+                    + "Retry-After: " + (wait + 999L) / 1000L + "\r\n"
+                    + "Content-Length:0\r\n"
+                    + "Connection:close\r\n\r\n").getBytes("UTF-8"));
+            return false;
+        }
+        if (request.path.equals("call") && method != null && arguments != null) {
+            if (SpaceRTK.getInstance().authenticator.isValid(method, request.getParameter("key"))) {
+                if (method.equals("DOWNLOAD_WORLD"))
+                    return downloadWorld(arguments, output, keepAlive);
+                if ("true".equals(request.getParameter("async")))
+                    response.writeJson(output, request, submit(method, arguments), keepAlive);
+                else
+                    response.writeJson(output, request, interpret(method, arguments), keepAlive);
+            } else
+                response.writeText(output, request, "Incorrect Salt supplied. Access denied!", keepAlive);
+        }
+        else if (request.path.equals("multiple") && methods != null && arguments != null) {
+            if (SpaceRTK.getInstance().authenticator.isValid(method, request.getParameter("key")))
+                response.writeJson(output, request, interpretm(methods, arguments), keepAlive);
+            else
+                response.writeText(output, request, "Incorrect Salt supplied. Access denied!", keepAlive);
+        } else if (request.path.equals("operationEvents")) {
+            if (SpaceRTK.getInstance().authenticator.isValid("operationEvents", request.getParameter("key")))
+                return streamOperation(request.getParameter("uid"), output);
+            else
+                response.writeText(output, request, "Incorrect Salt supplied. Access denied!", keepAlive);
+        } else if (request.path.equals("metrics")) {
+            if (SpaceRTK.getInstance().authenticator.isValid("metrics", request.getParameter("key")))
+                response.writeText(output, request, metricsText(), keepAlive);
+            else
+                response.writeText(output, request, "Incorrect Salt supplied. Access denied!", keepAlive);
+        } else if (request.path.startsWith("ping"))
+            response.writeText(output, request, "Pong!", keepAlive);
+        else
+            response.writeError(output, keepAlive);
+        return keepAlive;
+    }
+
+    /**
+     * Draws a request from the rate limits of its client
+     * @param method Action of a single call, null if the request is not a call
+     * @param methods Actions of a "multiple" call, null if the request is not one
+     * @return 0 if the request may be answered, otherwise milliseconds before the client may retry
+     */
+    private long admitRequest(final String method, final List<Object> methods) {
+        final ActionOptionsRegistry options = SpaceRTK.getInstance().actionOptions;
+        int calls = 1;
+        int heavyCalls = 0;
+        if (method != null && (method.equals("DOWNLOAD_WORLD") || options.isHeavy(method)))
+            heavyCalls = 1;
+        if (methods != null) {
+            calls = Math.max(1, methods.size());
+            for (final Object m : methods)
+                if (options.isHeavy(String.valueOf(m)))
+                    heavyCalls++;
+        }
+        return listener.getRateLimiter().acquire(socket.getInetAddress(), calls, heavyCalls);
+    }
+
+    /**
+     * Streams the progress of a backup or restore operation as server-sent events, until the operation is done.
+     * Updates are sent as they happen, but no more often than the configured progress interval; a comment is sent
+     * when nothing happened for a while so a vanished client is noticed.
+     * @param uid UID of the operation, null for the operation currently running
+     * @param output Stream to answer to
+     * @return false, the connection is closed at the end of the stream
+     * @throws IOException If the events cannot be written
+     */
+    private boolean streamOperation(String uid, final OutputStream output) throws IOException {
+        final BackupManager manager = SpaceRTK.getInstance().getBackupManager();
+        if (uid == null)
+            uid = manager.getOperationRunning();
+        output.write(("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream; charset=utf-8\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection:close\r\n\r\n").getBytes("UTF-8"));
+        output.flush();
+        final long interval = listener.getProgressInterval();
+        long seen = -1L;
+        try {
+            while (true) {
+                final BackupManager.OperationUpdate update = uid == null ? null
+                        : manager.awaitOperationUpdate(uid, seen, EVENT_HEARTBEAT);
+                if (update == null) {
+                    output.write("event: done\ndata: null\n\n".getBytes("UTF-8"));
+                    break;
+                }
+                if (update.updates == seen && !update.done) {
+                    output.write(": heartbeat\n\n".getBytes("UTF-8"));
+                    output.flush();
+                    continue;
+                }
+                seen = update.updates;
+                output.write(("id: " + seen + "\n"
+                        + (update.done ? "event: done\n" : "")
+                        + "data: " + JSONValue.toJSONString(update.info) + "\n\n").getBytes("UTF-8"));
+                output.flush();
+                if (update.done)
+                    break;
+                Thread.sleep(interval); // Updates made in the meantime are sent together as the next event.
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        output.flush();
+        return false;
+    }
+
+    /**
+     * Gets the metrics of the listener and of the actions in the plain text format read by metrics scrapers
+     * @return Metrics as text
+     */
+    private String metricsText() {
+        final StringBuilder text = new StringBuilder(4096);
+        text.append("# TYPE spacertk_panel_connections_active gauge\n");
+        text.append("spacertk_panel_connections_active ").append(listener.getActiveConnections()).append('\n');
+        text.append("# TYPE spacertk_panel_connections_queued gauge\n");
+        text.append("spacertk_panel_connections_queued ").append(listener.getQueuedConnections()).append('\n');
+        listener.getRateLimiter().writeText(text);
+        text.append("# TYPE spacertk_console_queued gauge\n");
+        text.append("spacertk_console_queued ").append(SpaceRTK.getInstance().consoleWriter.getQueueDepth()).append('\n');
+        SpaceRTK.getInstance().actionMetrics.writeText(text);
+        SpaceRTK.getInstance().pluginMetrics.writeText(text);
+        SpaceRTK.getInstance().resultCache.writeText(text);
+        return text.toString();
+    }
+
+    /**
+     * Streams a world folder to the panel as a zip archive, compressing it on the fly.
+     * HTTP/1.1 clients receive a chunked body and may keep the connection, older clients receive
+     * a body delimited by the end of the connection.
+     * @param arguments Arguments of the call, the first one being the folder of the world
+     * @param output Stream to answer to
+     * @param keepAlive If the connection may be kept open after this request
+     * @return If the connection is kept open after this request
+     * @throws IOException If the archive cannot be written
+     */
+    @SuppressWarnings("unchecked")
+    private boolean downloadWorld(final String arguments, final OutputStream output, boolean keepAlive) throws IOException {
+        final List<Object> parsed = (List<Object>) JSONValue.parse(arguments);
+        final File folder = parsed == null || parsed.isEmpty() ? null : new File(String.valueOf(parsed.get(0)));
+        if (folder == null || !folder.isDirectory()) {
+            response.writeError(output, keepAlive);
+            return keepAlive;
+        }
+        keepAlive &= http11;
+        final String fileName = folder.getName() + ".zip";
+        final boolean wasRunning = RemoteToolkit.isRunning();
+        if (wasRunning)
+            RemoteToolkit.hold();
+        try {
+            output.write(("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/force-download; name=" + fileName + "\r\n"
+                    + "Content-Transfer-Encoding: binary\r\n"
+                    + "Content-Disposition: attachment; filename=" + fileName + "\r\n"
+                    + "Expires: 0\r\n"
+                    + "Cache-Control: no-cache, must-revalidate\r\n"
+                    + "Pragma: no-cache\r\n"
+                    + (http11 ? "Transfer-Encoding: chunked\r\n" : "")
+                    + "Connection:" + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes("UTF-8"));
+            if (http11) {
+                final ChunkedOutputStream body = new ChunkedOutputStream(output);
+                ZIP.zip(body, folder);
+                body.finish();
+            } else {
+                ZIP.zip(output, folder);
+                output.flush();
+            }
+        } finally {
+            if (wasRunning)
+                RemoteToolkit.unhold();
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Writes an empty response with the given status, after which the connection is closed
+     * @param output Stream to write to
+     * @param status HTTP status, such as "400 Bad Request"
+     * @throws IOException If the response cannot be written
+     */
+    private static void writeStatus(final OutputStream output, final String status) throws IOException {
+        output.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Length:0\r\n"
+                + "Connection:close\r\n\r\n").getBytes("UTF-8"));
+        output.flush();
+    }
+}
@@ -14,217 +14,171 @@
  */
 package me.neatmonster.spacertk;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URLDecoder;
-import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import me.neatmonster.spacemodule.api.InvalidArgumentsException;
-import me.neatmonster.spacemodule.api.UnhandledActionException;
-import me.neatmonster.spacertk.utilities.Utilities;
-import me.neatmonster.spacertk.utilities.ZIP;
-
-import org.json.simple.JSONValue;
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
 
 /**
- * Listens and accepts requests from the panel
+ * Listens and accepts requests from the panel, handing each connection to a bounded pool of workers
  */
 public class PanelListener extends Thread {
+    private static final int SO_BACKLOG = 128;
+    private static final int SO_TIMEOUT = 30000; //30 seconds
+    private static final long WORKER_KEEP_ALIVE = 60L; //Seconds an idle worker is kept around
 
     /**
-     * Interprets a raw command from the panel
-     * @param string input from panel
-     * @return result of the action
-     * @throws InvalidArgumentsException Thrown when the wrong arguments are used by the panel
-     * @throws UnhandledActionException Thrown when there is no handler for the action
+     * What to do with a connection when every worker is busy and the queue is full
      */
-    @SuppressWarnings("unchecked")
-    private static Object interpret(final String string) throws InvalidArgumentsException, UnhandledActionException {
-        final int indexOfMethod = string.indexOf("?method=");
-        final int indexOfArguments = string.indexOf("&args=");
-        final int indexOfKey = string.indexOf("&key=");
-        final String method = string.substring(indexOfMethod + 8, indexOfArguments);
-        final String argumentsString = string.substring(indexOfArguments + 6, indexOfKey);
-        final List<Object> arguments = (List<Object>) JSONValue.parse(argumentsString);
-        try {
-            if (SpaceRTK.getInstance().actionsManager.contains(method))
-                return SpaceRTK.getInstance().actionsManager.execute(method, arguments.toArray());
-        } catch (final InvalidArgumentsException e) {
-            e.printStackTrace();
-        } catch (final UnhandledActionException e) {
-            e.printStackTrace();
+    public enum RejectionPolicy {
+        /**
+         * Answer with a 503 Service Unavailable and close the connection
+         */
+        REJECT,
+        /**
+         * Close the connection without answering
+         */
+        DROP,
+        /**
+         * Handle the connection on the listening thread, which stops accepting until it is done
+         */
+        CALLER_RUNS;
+
+        /**
+         * Gets a policy from its configuration name, falling back to REJECT
+         * @param name Name of the policy
+         * @return The matching policy
+         */
+        public static RejectionPolicy fromString(final String name) {
+            if (name != null)
+                for (final RejectionPolicy policy : values())
+                    if (policy.name().replace("_", "").equalsIgnoreCase(name.replace("_", "")))
+                        return policy;
+            return REJECT;
         }
-        return null;
     }
+
+    private final int                workerThreads;
+    private final int                queueSize;
+    private final RejectionPolicy    rejectionPolicy;
+    private final int                keepAliveTimeout;
+    private final int                keepAliveMaxRequests;
+    private final int                maxRequestLine;
+    private final int                maxHeaderLength;
+    private final int                maxBodyLength;
+    private final int                streamThreshold;
+    private final int                compressionThreshold;
+    private final long               progressInterval;
+    private final BatchExecutor      batchExecutor;
+    private final RateLimiter        rateLimiter;
+    private ServerSocket             serverSocket = null;
+    private ThreadPoolExecutor       workers      = null;
+
     /**
-     * Interprets a raw command from the panel (multiple)
-     * @param string input from panel
-     * @return result of the action
-     * @throws InvalidArgumentsException Thrown when the wrong arguments are used by the panel
-     * @throws UnhandledActionException Thrown when there is no handler for the action
+     * Creates a new panel listener, listening for connections from a panel.
+     * The listener is configured from the Panel section of the SpaceModule configuration.
      */
-    @SuppressWarnings("unchecked")
-    private static Object interpretm(final String string) throws InvalidArgumentsException, UnhandledActionException {
-        final int indexOfMethod = string.indexOf("?method=");
-        final int indexOfArguments = string.indexOf("&args=");
-        final int indexOfKey = string.indexOf("&key=");
-        final String methodString = string.substring(indexOfMethod + 8, indexOfArguments);
-        final String argumentsString = string.substring(indexOfArguments + 6, indexOfKey);
-        final List<Object> methods = (List<Object>) JSONValue.parse(methodString);
-        final List<Object> arguments = (List<Object>) JSONValue.parse(argumentsString);
-        final List<Object> result = (List<Object>) JSONValue.parse("[]");
-        for (int i = 0; i < methods.size(); i++) {
-        	String argsString = arguments.toArray()[i].toString();
-    		List<Object> args = (List<Object>) JSONValue.parse(argsString);
-            try {
-                if (SpaceRTK.getInstance().actionsManager.contains(methods.toArray()[i].toString()))
-                    result.add(SpaceRTK.getInstance().actionsManager.execute(methods.toArray()[i].toString(), args.toArray()));
-            } catch (final InvalidArgumentsException e) {
-            	result.add(null);
-                e.printStackTrace();
-            } catch (final UnhandledActionException e) {
-            	result.add(null);
-                e.printStackTrace();
-            }
-            
-    	}
-        return result;
+    public PanelListener() {
+        final SpaceRTK rtk = SpaceRTK.getInstance();
+        workerThreads = Math.max(1, rtk.panelWorkerThreads);
+        queueSize = Math.max(1, rtk.panelQueueSize);
+        rejectionPolicy = RejectionPolicy.fromString(rtk.panelRejectionPolicy);
+        keepAliveTimeout = Math.max(1, rtk.panelKeepAliveTimeout);
+        keepAliveMaxRequests = Math.max(1, rtk.panelKeepAliveMaxRequests);
+        maxRequestLine = Math.max(1, rtk.panelMaxRequestLine);
+        maxHeaderLength = Math.max(1, rtk.panelMaxHeaderLength);
+        maxBodyLength = Math.max(0, rtk.panelMaxBodyLength);
+        streamThreshold = Math.max(0, rtk.panelStreamThreshold);
+        compressionThreshold = rtk.panelCompression ? Math.max(0, rtk.panelCompressionThreshold) : -1;
+        progressInterval = Math.max(0L, rtk.panelProgressInterval);
+        final int batchThreads = Math.max(1, rtk.panelBatchThreads);
+        batchExecutor = new BatchExecutor(batchThreads, batchThreads * 16, Math.max(1L, rtk.panelBatchActionTimeout));
+        rateLimiter = new RateLimiter(Math.max(0.0, rtk.panelRateLimit), rtk.panelRateBurst,
+                Math.max(0.0, rtk.panelHeavyRateLimit), rtk.panelHeavyRateBurst, rtk.panelMaxClientConnections);
+        setName("SpaceRTK PanelListener");
+        start();
     }
-    
-    private static final int SO_BACKLOG = 128;
-    private static final int SO_TIMEOUT = 30000; //30 seconds
-    private final int    mode;
-    private ServerSocket serverSocket = null;
-    private Socket       socket;
 
     /**
-     * Creates a new panel listener, listening for connections from a panel
+     * Gets the number of connections currently being handled
+     * @return Active connections
      */
-    public PanelListener() {
-        mode = 0;
-        start();
+    public int getActiveConnections() {
+        return workers == null ? 0 : workers.getActiveCount();
     }
 
     /**
-     * Creates a new panel listener, listening for input from the socket
-     * @param socket Socket to listen on
+     * Gets the number of accepted connections waiting for a worker
+     * @return Queued connections
      */
-    public PanelListener(final Socket socket) {
-        mode = 1;
-        this.socket = socket;
-        start();
+    public int getQueuedConnections() {
+        return workers == null ? 0 : workers.getQueue().size();
     }
 
     /**
-     * Gets the mode the panel listener is in
-     * 0 = Listening for opening connection from a panel
-     * 1 = Listening for input from a socket
-     * @return mode panel is in
+     * Gets the limits applied to each client of the listener
+     * @return Rate limiter
      */
-    public int getMode() {
-        return mode;
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Gets the minimum time between two progress events sent to the panel
+     * @return Interval in milliseconds
+     */
+    long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Gets the executor running the actions of "multiple" calls
+     * @return Batch executor
+     */
+    BatchExecutor getBatchExecutor() {
+        return batchExecutor;
     }
 
     @Override
     public void run() {
-        if (mode == 0) {
+        try {
+            serverSocket = new ServerSocket(SpaceRTK.getInstance().rPort, SO_BACKLOG, SpaceRTK.getInstance().bindAddress);
+            serverSocket.setSoTimeout(SO_TIMEOUT);
+        } catch(IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-            try {
-                serverSocket = new ServerSocket(SpaceRTK.getInstance().rPort, SO_BACKLOG, SpaceRTK.getInstance().bindAddress);
-                serverSocket.setSoTimeout(SO_TIMEOUT);
-            } catch(IOException e) {
-                e.printStackTrace();
-                return;
-            }
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory(),
+                new RejectionHandler());
+        workers.allowCoreThreadTimeOut(true);
 
-            while (!serverSocket.isClosed()) {
-                try {
-                    final Socket clientSocket = serverSocket.accept();
-                    new PanelListener(clientSocket);
-                } catch(SocketTimeoutException e) {
-                    // Do nothing.
-                } catch (Exception e) {
-                    if (!e.getMessage().contains("socket closed"))
-                        e.printStackTrace();
-                }
-            }
-        } else {
+        while (!serverSocket.isClosed()) {
             try {
-                final BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String string = input.readLine();
-                if (string == null) {
-                    return;
-                }
-                string = URLDecoder.decode(string, "UTF-8");
-                string = string.substring(5, string.length() - 9);
-                final PrintWriter output = new PrintWriter(socket.getOutputStream());
-                if (string.startsWith("call") && string.contains("?method=") && string.contains("&args=")) {
-                    final String method = string.substring(12, string.indexOf("&args="));
-                    if (string.contains("&key=" + Utilities.crypt(method + SpaceRTK.getInstance().salt))) {
-                        if (string.startsWith("call?method=DOWNLOAD_WORLD")) {
-                            final boolean wasRunning = RemoteToolkit.isRunning();
-                            if (wasRunning)
-                                RemoteToolkit.hold();
-                            final File file = new File(string.split("\"")[1] + ".zip");
-                            ZIP.zip(file, new File(string.split("\"")[1]));
-                            if (file.exists()) {
-                                final FileInputStream fileInputStream = new FileInputStream(file);
-                                final byte[] fileData = new byte[65536];
-                                int length;
-                                output.println("HTTP/1.1 200 OK");
-                                output.println("Content-Type: application/force-download; name=" + file.getName());
-                                output.println("Content-Transfer-Encoding: binary");
-                                output.println("Content-Length:" + file.length());
-                                output.println("Content-Disposition: attachment; filename=" + file.getName());
-                                output.println("Expires: 0");
-                                output.println("Cache-Control: no-cache, must-revalidate");
-                                output.println("Pragma: no-cache");
-                                while ((length = fileInputStream.read(fileData)) > 0)
-                                    output.print(new String(fileData, 0, length));
-                                fileInputStream.close();
-                            } else
-                                output.println(Utilities.addHeader(null));
-                            if (wasRunning)
-                                RemoteToolkit.unhold();
-                        } else {
-                            final Object result = interpret(string);
-                            if (result != null)
-                                output.println(Utilities.addHeader(JSONValue.toJSONString(result)));
-                            else
-                                output.println(Utilities.addHeader(null));
-                        }
-                    } else
-                        output.println(Utilities.addHeader("Incorrect Salt supplied. Access denied!"));
-                }
-                else if (string.startsWith("multiple") && string.contains("?method=") && string.contains("&args=")) {
-                    final String method = string.substring(16, string.indexOf("&args="));
-                    if (string.contains("&key=" + Utilities.crypt(method + SpaceRTK.getInstance().salt))) {
-                        final Object result = interpretm(string);
-                        if (result != null)
-                            output.println(Utilities.addHeader(JSONValue.toJSONString(result)));
-                        else
-                            output.println(Utilities.addHeader(null));
-                    } else
-                        output.println(Utilities.addHeader("Incorrect Salt supplied. Access denied!"));
-                } else if (string.startsWith("ping"))
-                    output.println(Utilities.addHeader("Pong!"));
+                final Socket clientSocket = serverSocket.accept();
+                final PanelConnection connection = new PanelConnection(clientSocket, this, keepAliveTimeout,
+                        keepAliveMaxRequests, new PanelRequestParser(maxRequestLine, maxHeaderLength, maxBodyLength),
+                        new PanelResponseWriter(streamThreshold, compressionThreshold));
+                if (connection.admit())
+                    workers.execute(connection);
                 else
-                    output.println(Utilities.addHeader(null));
-                output.flush();
-                input.close();
-                output.close();
-            } catch (final Exception e) {
-                e.printStackTrace();
+                    connection.reject("429 Too Many Requests");
+            } catch(SocketTimeoutException e) {
+                // Do nothing.
+            } catch (Exception e) {
+                if (e.getMessage() == null || !e.getMessage().contains("socket closed"))
+                    e.printStackTrace();
             }
         }
+        workers.shutdown();
+        PanelResponseWriter.releaseDeflaters(); //Used by connections run on this thread when the pool is full
     }
 
     /**
@@ -234,5 +188,57 @@ public class PanelListener extends Thread {
     public void stopServer() throws IOException {
         if (serverSocket != null)
             serverSocket.close();
+        if (workers != null)
+            workers.shutdown();
+        batchExecutor.shutdown();
+    }
+
+    /**
+     * Applies the configured rejection policy to connections the pool cannot take
+     */
+    private class RejectionHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+            final PanelConnection connection = (PanelConnection) runnable;
+            if (executor.isShutdown()) {
+                connection.close();
+                return;
+            }
+            switch (rejectionPolicy) {
+            case CALLER_RUNS:
+                connection.run();
+                break;
+            case DROP:
+                connection.close();
+                break;
+            default:
+                connection.reject("503 Service Unavailable");
+            }
+        }
+    }
+
+    /**
+     * Creates the worker threads, which end their deflaters when they exit, as idle workers time out
+     */
+    private static class WorkerThreadFactory extends NamedThreadFactory {
+
+        WorkerThreadFactory() {
+            super("SpaceRTK PanelWorker");
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return super.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        PanelResponseWriter.releaseDeflaters();
+                    }
+                }
+            });
+        }
     }
 }
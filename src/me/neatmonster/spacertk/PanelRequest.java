@@ -0,0 +1,72 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request sent by the panel, as read by {@link PanelRequestParser}
+ */
+class PanelRequest {
+    final String              method;
+    final String              path;
+    final boolean             http11;
+    final Map<String, String> headers    = new HashMap<String, String>();
+    final Map<String, String> parameters = new HashMap<String, String>();
+
+    /**
+     * Creates a new request
+     * @param method HTTP method, such as GET or POST
+     * @param path Path of the request without the leading slash and the query string, such as "call"
+     * @param http11 If the request was made using HTTP/1.1
+     */
+    PanelRequest(final String method, final String path, final boolean http11) {
+        this.method = method;
+        this.path = path;
+        this.http11 = http11;
+    }
+
+    /**
+     * Gets a header of the request
+     * @param name Name of the header, in lower case
+     * @return Value of the header, null if it is missing
+     */
+    String getHeader(final String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Gets a decoded parameter of the request, taken from the query string or a form body
+     * @param name Name of the parameter
+     * @return Value of the parameter, null if it is missing
+     */
+    String getParameter(final String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Checks if the client accepts a persistent connection
+     * @return If the connection may be kept open after this request
+     */
+    boolean isKeepAlive() {
+        final String connection = headers.get("connection");
+        if (connection == null)
+            return http11;
+        if (connection.equalsIgnoreCase("close"))
+            return false;
+        return http11 || connection.equalsIgnoreCase("keep-alive");
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a panel request is malformed or exceeds the configured limits
+ */
+class PanelRequestException extends IOException {
+    private static final long serialVersionUID = -3216089374120537462L;
+
+    private final String status;
+
+    /**
+     * Creates a new exception
+     * @param status HTTP status to answer with, such as "400 Bad Request"
+     */
+    PanelRequestException(final String status) {
+        super(status);
+        this.status = status;
+    }
+
+    /**
+     * Gets the HTTP status to answer with
+     * @return HTTP status
+     */
+    String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Reads panel requests from a connection in a single pass over the raw bytes.
+ * Only parameter names and values are URL-decoded, the request line is never copied as a whole, and lines
+ * longer than the configured limits are rejected as soon as the limit is reached.
+ * A parser buffers what it reads from the connection itself, keeps its buffers between requests and must not be
+ * shared between connections.
+ */
+class PanelRequestParser {
+    private static final Charset UTF8                = Charset.forName("UTF-8");
+    private static final int     INITIAL_BUFFER_SIZE = 1024;
+    private static final int     INPUT_BUFFER_SIZE   = 8192;
+    private static final String  FORM_CONTENT_TYPE   = "application/x-www-form-urlencoded";
+    private static final byte[]  HTTP_11             = {'H', 'T', 'T', 'P', '/', '1', '.', '1'};
+
+    private final int maxLineLength;
+    private final int maxHeaderLength;
+    private final int maxBodyLength;
+    private byte[]    line    = new byte[INITIAL_BUFFER_SIZE];
+    private byte[]    decoded = new byte[INITIAL_BUFFER_SIZE];
+    private int       lineLength;
+    private final byte[] buffer = new byte[INPUT_BUFFER_SIZE];
+    private int       position;
+    private int       limit;
+
+    /**
+     * Creates a new parser
+     * @param maxLineLength Maximum length of the request line, in bytes
+     * @param maxHeaderLength Maximum length of all the headers of a request, in bytes
+     * @param maxBodyLength Maximum length of a form body, in bytes
+     */
+    PanelRequestParser(final int maxLineLength, final int maxHeaderLength, final int maxBodyLength) {
+        this.maxLineLength = maxLineLength;
+        this.maxHeaderLength = maxHeaderLength;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * Reads the next request from a stream
+     * @param input Stream to read from, it does not need to be buffered
+     * @return The request, null if the stream ended before a new request started
+     * @throws PanelRequestException If the request is malformed or too large
+     * @throws IOException If the stream cannot be read
+     */
+    PanelRequest read(final InputStream input) throws IOException {
+        do
+            if (!readLine(input, maxLineLength, "414 Request-URI Too Long"))
+                return null;
+        while (lineLength == 0); // Skip stray line breaks between pipelined requests.
+
+        final PanelRequest request = parseRequestLine();
+
+        int headerLength = 0;
+        while (true) {
+            if (!readLine(input, maxHeaderLength - headerLength, "431 Request Header Fields Too Large"))
+                throw new PanelRequestException("400 Bad Request");
+            if (lineLength == 0)
+                break;
+            headerLength += lineLength + 2;
+            parseHeader(request.headers);
+        }
+
+        if (request.method.equals("POST"))
+            readBody(input, request);
+        return request;
+    }
+
+    /**
+     * Checks if bytes of a following request were already read from the connection
+     * @return If a pipelined request is waiting in the buffer
+     */
+    boolean hasBufferedInput() {
+        return position < limit;
+    }
+
+    /**
+     * Reads a line into the line buffer, without its line break
+     * @return false if the stream ended before any byte was read
+     */
+    private boolean readLine(final InputStream input, final int maxLength, final String tooLongStatus)
+            throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (position == limit && !fill(input))
+                return lineLength > 0;
+            int end = position;
+            while (end < limit && buffer[end] != '\n')
+                end++;
+            final int count = end - position;
+            if (lineLength + count > maxLength)
+                throw new PanelRequestException(tooLongStatus);
+            if (lineLength + count > line.length)
+                line = grow(line, lineLength + count, maxLength);
+            System.arraycopy(buffer, position, line, lineLength, count);
+            lineLength += count;
+            if (end < limit) {
+                position = end + 1;
+                break;
+            }
+            position = limit;
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r')
+            lineLength--;
+        return true;
+    }
+
+    /**
+     * Refills the input buffer
+     * @return false if the stream ended
+     */
+    private boolean fill(final InputStream input) throws IOException {
+        final int count = input.read(buffer, 0, buffer.length);
+        if (count <= 0)
+            return false;
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * Parses "METHOD /path?query HTTP/1.1" from the line buffer
+     */
+    private PanelRequest parseRequestLine() throws PanelRequestException {
+        final int methodEnd = indexOf(line, ' ', 0, lineLength);
+        if (methodEnd <= 0 || methodEnd + 1 >= lineLength || line[methodEnd + 1] != '/')
+            throw new PanelRequestException("400 Bad Request");
+        int targetEnd = indexOf(line, ' ', methodEnd + 1, lineLength);
+        if (targetEnd == -1)
+            targetEnd = lineLength;
+        final boolean http11 = lineLength - targetEnd - 1 == HTTP_11.length
+                && regionMatches(line, targetEnd + 1, HTTP_11);
+
+        final int pathStart = methodEnd + 2;
+        int pathEnd = indexOf(line, '?', pathStart, targetEnd);
+        if (pathEnd == -1)
+            pathEnd = targetEnd;
+
+        final PanelRequest request = new PanelRequest(new String(line, 0, methodEnd, UTF8),
+                decode(line, pathStart, pathEnd), http11);
+        if (pathEnd < targetEnd)
+            parseQuery(line, pathEnd + 1, targetEnd, request.parameters);
+        return request;
+    }
+
+    /**
+     * Parses "Name: value" from the line buffer
+     */
+    private void parseHeader(final Map<String, String> headers) {
+        final int colon = indexOf(line, ':', 0, lineLength);
+        if (colon <= 0)
+            return;
+        int valueStart = colon + 1;
+        while (valueStart < lineLength && (line[valueStart] == ' ' || line[valueStart] == '\t'))
+            valueStart++;
+        int valueEnd = lineLength;
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t'))
+            valueEnd--;
+        headers.put(new String(line, 0, colon, UTF8).trim().toLowerCase(),
+                new String(line, valueStart, valueEnd - valueStart, UTF8));
+    }
+
+    /**
+     * Reads a form body, whose parameters are added to those of the query string
+     */
+    private void readBody(final InputStream input, final PanelRequest request) throws IOException {
+        final String contentLength = request.getHeader("content-length");
+        if (contentLength == null)
+            throw new PanelRequestException("411 Length Required");
+        final int length;
+        try {
+            length = Integer.parseInt(contentLength.trim());
+        } catch (final NumberFormatException e) {
+            throw new PanelRequestException("400 Bad Request");
+        }
+        if (length < 0)
+            throw new PanelRequestException("400 Bad Request");
+        if (length > maxBodyLength)
+            throw new PanelRequestException("413 Request Entity Too Large");
+
+        final byte[] body = new byte[length];
+        int read = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, body, 0, read);
+        position += read;
+        while (read < length) {
+            final int count = input.read(body, read, length - read);
+            if (count == -1)
+                throw new PanelRequestException("400 Bad Request");
+            read += count;
+        }
+        final String contentType = request.getHeader("content-type");
+        if (contentType == null || contentType.toLowerCase().startsWith(FORM_CONTENT_TYPE))
+            parseQuery(body, 0, length, request.parameters);
+    }
+
+    /**
+     * Splits "name=value&name=value" and decodes each name and value
+     */
+    private void parseQuery(final byte[] bytes, int from, final int to, final Map<String, String> parameters)
+            throws PanelRequestException {
+        while (from < to) {
+            int end = indexOf(bytes, '&', from, to);
+            if (end == -1)
+                end = to;
+            final int equals = indexOf(bytes, '=', from, end);
+            if (equals > from)
+                parameters.put(decode(bytes, from, equals), decode(bytes, equals + 1, end));
+            else if (equals == -1 && end > from)
+                parameters.put(decode(bytes, from, end), "");
+            from = end + 1;
+        }
+    }
+
+    /**
+     * URL-decodes a range of bytes as UTF-8, copying only when an escape is present
+     */
+    private String decode(final byte[] bytes, final int from, final int to) throws PanelRequestException {
+        int i = from;
+        while (i < to && bytes[i] != '%' && bytes[i] != '+')
+            i++;
+        if (i == to)
+            return new String(bytes, from, to - from, UTF8);
+
+        if (decoded.length < to - from)
+            decoded = new byte[Math.max(to - from, decoded.length * 2)];
+        int length = i - from;
+        System.arraycopy(bytes, from, decoded, 0, length);
+        while (i < to) {
+            final byte b = bytes[i++];
+            if (b == '+')
+                decoded[length++] = ' ';
+            else if (b == '%') {
+                if (i + 1 >= to)
+                    throw new PanelRequestException("400 Bad Request");
+                final int high = Character.digit(bytes[i++], 16);
+                final int low = Character.digit(bytes[i++], 16);
+                if (high == -1 || low == -1)
+                    throw new PanelRequestException("400 Bad Request");
+                decoded[length++] = (byte) ((high << 4) + low);
+            } else
+                decoded[length++] = b;
+        }
+        return new String(decoded, 0, length, UTF8);
+    }
+
+    private static int indexOf(final byte[] bytes, final char c, final int from, final int to) {
+        for (int i = from; i < to; i++)
+            if (bytes[i] == c)
+                return i;
+        return -1;
+    }
+
+    private static boolean regionMatches(final byte[] bytes, final int offset, final byte[] expected) {
+        for (int i = 0; i < expected.length; i++)
+            if (bytes[offset + i] != expected[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] grow(final byte[] bytes, final int needed, final int maxLength) {
+        final byte[] grown = new byte[Math.max(needed, Math.min(bytes.length * 2, maxLength))];
+        System.arraycopy(bytes, 0, grown, 0, bytes.length);
+        return grown;
+    }
+}
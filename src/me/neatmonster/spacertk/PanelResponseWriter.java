@@ -0,0 +1,453 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import me.neatmonster.spacertk.utilities.JSONWriter;
+
+/**
+ * Writes responses to the panel, encoding bodies straight to UTF-8 bytes.
+ * The body is serialized into a reusable buffer behind some room reserved for the headers, so once its length is
+ * known the headers are put right in front of it and the whole response goes out in a single write.
+ * When a JSON body grows past the streaming threshold and the client speaks HTTP/1.1, the response switches to the
+ * chunked transfer encoding and the buffer is sent as a chunk each time it fills up, so large results are never
+ * held in memory as a whole.
+ * Bodies past the compression threshold are compressed with gzip or deflate when the client accepts it, using
+ * deflaters kept by each worker thread and ended by {@link #releaseDeflaters()} when the thread exits.
+ * A writer keeps its buffers between responses and must not be shared between connections.
+ */
+class PanelResponseWriter {
+    private static final int    HEADER_ROOM        = 256;
+    private static final int    TRAILER_ROOM       = 15; //gzip trailer, line break ending a chunk and the last chunk
+    private static final int    INITIAL_BODY_SIZE  = 8192;
+    private static final int    RETAINED_BODY_SIZE = 1048576; //Larger buffers are dropped once the response is sent
+    private static final String TEXT_TYPE          = "text/plain; charset=utf-8";
+    private static final String HTML_TYPE          = "text/html; charset=utf-8";
+    private static final String GZIP               = "gzip";
+    private static final String DEFLATE            = "deflate";
+    private static final byte[] GZIP_HEADER        = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[2];
+        }
+    };
+
+    private final int          streamThreshold;
+    private final int          compressionThreshold;
+    private final byte[]       header = new byte[HEADER_ROOM];
+    private final Utf8Body     body   = new Utf8Body();
+    private final CRC32        crc    = new CRC32();
+    private byte[]             buffer = new byte[HEADER_ROOM + INITIAL_BODY_SIZE + TRAILER_ROOM];
+    private int                length;
+    private byte[]             packed = new byte[HEADER_ROOM + INITIAL_BODY_SIZE + TRAILER_ROOM];
+    private int                packedLength;
+    private boolean            keepAlive;
+    private String             encoding;  //Encoding accepted by the client, null to send the body as is
+    private Deflater           deflater;  //Set once the body is being compressed
+    private OutputStream       stream;    //Set while a body may still be streamed
+    private boolean            streaming; //If the headers of a chunked response were sent
+
+    /**
+     * Creates a new response writer
+     * @param streamThreshold Size in bytes past which a JSON body is streamed, 0 to always send it at once
+     * @param compressionThreshold Size in bytes from which a body is compressed, -1 to never compress
+     */
+    PanelResponseWriter(final int streamThreshold, final int compressionThreshold) {
+        this.streamThreshold = streamThreshold;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Answers with the result of an action serialized as JSON, or with a 500 if there is no result
+     * @param output Stream to write to
+     * @param request Request being answered
+     * @param result Result of the action
+     * @param keepAlive If the connection is kept open after this response
+     * @throws IOException If the response cannot be written
+     */
+    void writeJson(final OutputStream output, final PanelRequest request, final Object result,
+            final boolean keepAlive) throws IOException {
+        if (result == null) {
+            writeError(output, keepAlive);
+            return;
+        }
+        begin(request, keepAlive);
+        if (request.http11 && streamThreshold > 0)
+            stream = output;
+        try {
+            JSONWriter.write(result, body);
+            if (streaming)
+                sendChunk(true);
+            else
+                send(output, "200 OK", TEXT_TYPE);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Answers with a plain text message
+     * @param output Stream to write to
+     * @param request Request being answered
+     * @param text Message to send
+     * @param keepAlive If the connection is kept open after this response
+     * @throws IOException If the response cannot be written
+     */
+    void writeText(final OutputStream output, final PanelRequest request, final String text,
+            final boolean keepAlive) throws IOException {
+        begin(request, keepAlive);
+        try {
+            body.write(text);
+            send(output, "200 OK", TEXT_TYPE);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Answers with an empty 500 Internal Server Error
+     * @param output Stream to write to
+     * @param keepAlive If the connection is kept open after this response
+     * @throws IOException If the response cannot be written
+     */
+    void writeError(final OutputStream output, final boolean keepAlive) throws IOException {
+        begin(null, keepAlive);
+        try {
+            send(output, "500 Internal Server Error", HTML_TYPE);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Chooses the content encoding of a response from the Accept-Encoding header of the request
+     * @param acceptEncoding Value of the header, may be null
+     * @return "gzip", "deflate" or null if the body should not be compressed
+     */
+    static String negotiateEncoding(final String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        String chosen = null;
+        for (final String token : acceptEncoding.split(",")) {
+            final String[] parts = token.split(";");
+            final String name = parts[0].trim().toLowerCase();
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q="))
+                    try {
+                        refused = Double.parseDouble(parameter.substring(2)) <= 0;
+                    } catch (final NumberFormatException e) {
+                        refused = true;
+                    }
+            }
+            if (refused)
+                continue;
+            if (name.equals(GZIP) || name.equals("x-gzip") || name.equals("*"))
+                return GZIP;
+            if (name.equals(DEFLATE))
+                chosen = DEFLATE;
+        }
+        return chosen;
+    }
+
+    private void begin(final PanelRequest request, final boolean keepAlive) {
+        length = HEADER_ROOM;
+        this.keepAlive = keepAlive;
+        encoding = request != null && compressionThreshold >= 0
+                ? negotiateEncoding(request.getHeader("accept-encoding")) : null;
+    }
+
+    private void end() {
+        stream = null;
+        streaming = false;
+        if (deflater != null) {
+            deflater.reset();
+            deflater = null;
+        }
+        if (buffer.length > HEADER_ROOM + RETAINED_BODY_SIZE + TRAILER_ROOM)
+            buffer = new byte[HEADER_ROOM + INITIAL_BODY_SIZE + TRAILER_ROOM];
+        if (packed.length > HEADER_ROOM + RETAINED_BODY_SIZE + TRAILER_ROOM)
+            packed = new byte[HEADER_ROOM + INITIAL_BODY_SIZE + TRAILER_ROOM];
+    }
+
+    /**
+     * Puts the headers in front of the body, compressed if needed, and writes both at once
+     */
+    private void send(final OutputStream output, final String status, final String contentType)
+            throws IOException {
+        byte[] data = buffer;
+        int end = length;
+        if (encoding != null && length - HEADER_ROOM >= compressionThreshold) {
+            startCompression();
+            compress(true);
+            data = packed;
+            end = packedLength;
+        }
+        final int headerLength = headers(status, contentType, end - HEADER_ROOM);
+        final int start = HEADER_ROOM - headerLength;
+        System.arraycopy(header, 0, data, start, headerLength);
+        output.write(data, start, end - start);
+    }
+
+    /**
+     * Sends the buffered body as a chunk, preceded by the headers if it is the first one
+     * @param last If the body is complete, in which case the last chunk follows
+     */
+    private void sendChunk(final boolean last) throws IOException {
+        int headerLength = 0;
+        if (!streaming) {
+            if (encoding != null)
+                startCompression();
+            headerLength = headers("200 OK", TEXT_TYPE, -1);
+            streaming = true;
+        }
+        byte[] data = buffer;
+        int end = length;
+        if (deflater != null) {
+            compress(last);
+            data = packed;
+            end = packedLength;
+        }
+        final int size = end - HEADER_ROOM;
+        if (size > 0) {
+            headerLength = ascii(Integer.toHexString(size), headerLength);
+            headerLength = ascii("\r\n", headerLength);
+            data[end++] = '\r';
+            data[end++] = '\n';
+        }
+        if (last) {
+            data[end++] = '0';
+            data[end++] = '\r';
+            data[end++] = '\n';
+            data[end++] = '\r';
+            data[end++] = '\n';
+        }
+        final int start = HEADER_ROOM - headerLength;
+        System.arraycopy(header, 0, data, start, headerLength);
+        stream.write(data, start, end - start);
+        length = HEADER_ROOM;
+        packedLength = HEADER_ROOM;
+    }
+
+    /**
+     * Writes the headers of a response to the header buffer
+     * @param contentLength Length of the body, -1 if it is sent in chunks
+     * @return Length of the headers
+     */
+    private int headers(final String status, final String contentType, final int contentLength) {
+        int headerLength = 0;
+        headerLength = ascii("HTTP/1.1 ", headerLength);
+        headerLength = ascii(status, headerLength);
+        headerLength = ascii("\r\nContent-Language:en\r\n", headerLength);
+        if (contentLength >= 0) {
+            headerLength = ascii("Content-Length:", headerLength);
+            headerLength = ascii(Integer.toString(contentLength), headerLength);
+        } else
+            headerLength = ascii("Transfer-Encoding:chunked", headerLength);
+        headerLength = ascii("\r\nContent-Type:", headerLength);
+        headerLength = ascii(contentType, headerLength);
+        if (encoding != null) {
+            if (deflater != null) {
+                headerLength = ascii("\r\nContent-Encoding:", headerLength);
+                headerLength = ascii(encoding, headerLength);
+            }
+            headerLength = ascii("\r\nVary:Accept-Encoding", headerLength);
+        }
+        return ascii(keepAlive ? "\r\nConnection:keep-alive\r\n\r\n" : "\r\nConnection:close\r\n\r\n",
+                headerLength);
+    }
+
+    private int ascii(final String string, int offset) {
+        for (int i = 0; i < string.length(); i++)
+            header[offset++] = (byte) string.charAt(i);
+        return offset;
+    }
+
+    /**
+     * Ends the deflaters of the current thread, freeing their native memory. Called by worker threads as they exit.
+     */
+    static void releaseDeflaters() {
+        final Deflater[] deflaters = DEFLATERS.get();
+        for (final Deflater deflater : deflaters)
+            if (deflater != null)
+                deflater.end();
+        DEFLATERS.remove();
+    }
+
+    /**
+     * Takes the deflater of the current thread matching the negotiated encoding
+     */
+    private void startCompression() {
+        final Deflater[] deflaters = DEFLATERS.get();
+        final int index = GZIP.equals(encoding) ? 0 : 1;
+        if (deflaters[index] == null)
+            deflaters[index] = new Deflater(Deflater.DEFAULT_COMPRESSION, index == 0);
+        deflater = deflaters[index];
+        deflater.reset();
+        packedLength = HEADER_ROOM;
+        if (index == 0) {
+            crc.reset();
+            System.arraycopy(GZIP_HEADER, 0, packed, packedLength, GZIP_HEADER.length);
+            packedLength += GZIP_HEADER.length;
+        }
+    }
+
+    /**
+     * Compresses the buffered body, appending to the compressed buffer
+     * @param finish If the body is complete, in which case the compressed stream is ended
+     */
+    private void compress(final boolean finish) {
+        final boolean gzip = GZIP.equals(encoding);
+        deflater.setInput(buffer, HEADER_ROOM, length - HEADER_ROOM);
+        if (gzip)
+            crc.update(buffer, HEADER_ROOM, length - HEADER_ROOM);
+        if (finish)
+            deflater.finish();
+        while (finish ? !deflater.finished() : !deflater.needsInput()) {
+            if (packed.length - packedLength - TRAILER_ROOM < INITIAL_BODY_SIZE) {
+                final byte[] grown = new byte[packed.length * 2];
+                System.arraycopy(packed, 0, grown, 0, packedLength);
+                packed = grown;
+            }
+            packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength - TRAILER_ROOM);
+        }
+        if (finish && gzip) {
+            littleEndian(crc.getValue());
+            littleEndian(deflater.getBytesRead());
+        }
+    }
+
+    private void littleEndian(final long value) {
+        packed[packedLength++] = (byte) value;
+        packed[packedLength++] = (byte) (value >> 8);
+        packed[packedLength++] = (byte) (value >> 16);
+        packed[packedLength++] = (byte) (value >> 24);
+    }
+
+    /**
+     * Makes room for more body bytes, sending what is buffered first if the body is being streamed
+     */
+    private void ensureCapacity(final int extra) throws IOException {
+        if (stream != null && length > HEADER_ROOM && length - HEADER_ROOM + extra > streamThreshold)
+            sendChunk(false);
+        if (length + extra + TRAILER_ROOM > buffer.length) {
+            final byte[] grown = new byte[Math.max(length + extra + TRAILER_ROOM, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 straight into the response buffer
+     */
+    private class Utf8Body extends Writer {
+        private static final int SLICE_SIZE = 4096;
+
+        private final char[] chars = new char[SLICE_SIZE];
+
+        @Override
+        public void write(final int c) throws IOException {
+            ensureCapacity(3);
+            if (c < 0x80)
+                buffer[length++] = (byte) c;
+            else
+                encode((char) c, (char) 0);
+        }
+
+        @Override
+        public void write(final String string, int offset, int count) throws IOException {
+            while (count > 0) {
+                final int slice = slice(count, string.charAt(offset + Math.min(count, SLICE_SIZE) - 1));
+                string.getChars(offset, offset + slice, chars, 0);
+                encode(chars, 0, slice);
+                offset += slice;
+                count -= slice;
+            }
+        }
+
+        @Override
+        public void write(final char[] source, int offset, int count) throws IOException {
+            while (count > 0) {
+                final int slice = slice(count, source[offset + Math.min(count, SLICE_SIZE) - 1]);
+                encode(source, offset, slice);
+                offset += slice;
+                count -= slice;
+            }
+        }
+
+        /**
+         * Gets how many characters to encode at once, so a large string does not reserve three bytes per
+         * character up front and a surrogate pair is never split
+         */
+        private int slice(final int count, final char last) {
+            if (count <= SLICE_SIZE)
+                return count;
+            return Character.isHighSurrogate(last) ? SLICE_SIZE - 1 : SLICE_SIZE;
+        }
+
+        private void encode(final char[] source, final int offset, final int count) throws IOException {
+            ensureCapacity(count * 3);
+            final int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                final char c = source[i];
+                if (c < 0x80)
+                    buffer[length++] = (byte) c;
+                else
+                    i += encode(c, i + 1 < end ? source[i + 1] : 0);
+            }
+        }
+
+        /**
+         * Encodes a character that is not ASCII, the capacity being already ensured
+         * @return 1 if the next character was consumed as the low half of a surrogate pair, 0 otherwise
+         */
+        private int encode(final char c, final char next) {
+            if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | c >> 6);
+                buffer[length++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                final int codePoint = Character.toCodePoint(c, next);
+                buffer[length++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+                return 1;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                buffer[length++] = '?'; // Unpaired surrogate, replaced like String.getBytes does.
+            else {
+                buffer[length++] = (byte) (0xE0 | c >> 12);
+                buffer[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[length++] = (byte) (0x80 | c & 0x3F);
+            }
+            return 0;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -14,132 +14,179 @@
  */
 package me.neatmonster.spacertk;
 
-import me.neatmonster.spacertk.RemoteToolkit;
-import me.neatmonster.spacertk.SpaceRTK;
-
-import java.io.*;
-import java.net.*;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.neatmonster.spacertk.metrics.RollingLatencyHistogram;
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
+import me.neatmonster.spacertk.utilities.PluginClient;
 
 /**
  * Periodically pings SpaceBukkit and prints a warning if there is no response.
+ * While SpaceBukkit does not answer, the pings are spaced out further and further, and the warning is only
+ * printed when it goes down and when it comes back.
+ * The pings block for up to two seconds, so they run on a thread of their own rather than on the shared scheduler.
  * @author Jamy
  * @author Drdanick
  */
 public class PingListener {
 
-    private static final int TIMEOUT = 1000;
-    private static final int INITIAL_DELAY = 60 * 1000;
-    private static final int PING_PERIOD = 30 * 1000;
+    private static final int  TIMEOUT        = 1000;
+    private static final int  INITIAL_DELAY  = 60 * 1000;
+    private static final int  PING_PERIOD    = 30 * 1000;
+    private static final int  MAX_PERIOD     = 10 * 60 * 1000; //Longest delay between two pings while SpaceBukkit is down
+    private static final long LATENCY_WINDOW = 60 * 60 * 1000L; //Pings the latency percentiles are computed over
 
-    private Boolean running = false;
-    private Timer timer;
-    private TimerTask pingTask;
+    private ScheduledExecutorService       scheduler;
+    private final RollingLatencyHistogram  latency = new RollingLatencyHistogram(LATENCY_WINDOW, 12);
+    private PluginClient                   client;
+    private ScheduledFuture<?>             pingTask;
+    private boolean                        running = false;
 
-    private URL pingUrl;
+    private volatile long                  lastSuccess         = 0L;
+    private volatile long                  lastFailure         = 0L;
+    private volatile long                  lastLatency         = -1L;
+    private volatile String                lastError           = null;
+    private volatile int                   consecutiveFailures = 0;
 
+    /**
+     * Creates a new ping listener
+     */
     public PingListener() {
         InetAddress hostAddress = SpaceRTK.getInstance().spaceModule.bindAddress;
         try {
             if(hostAddress.isAnyLocalAddress())
                 hostAddress = InetAddress.getLocalHost();
-
-            pingUrl = new URL("http", hostAddress.getHostAddress(), SpaceRTK.getInstance().port, "/ping");
-
         } catch (UnknownHostException e) {
             System.err.println(
                     "Warning: Ping listener cannot find local host address.\n" +
                             "Disabling ping listener..."
             );
             return;
-
-        } catch(MalformedURLException e) {
-            System.err.println(
-                    "Warning: Ping URL could not be resolved: "+e.getMessage()+"\n" +
-                            "Disabling ping listener..."
-            );
-            return;
         }
 
-        timer = new Timer("SpaceBukkit PingListener", true);
-
+        client = new PluginClient(hostAddress.getHostAddress(), SpaceRTK.getInstance().port, TIMEOUT, TIMEOUT, 1,
+                SpaceRTK.getInstance().pluginMetrics);
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SpaceRTK Ping"));
     }
 
     /**
      * Starts the ping task.
      */
-    public void start() {
-        if(!running) {
+    public synchronized void start() {
+        if(!running && client != null) {
             running = true;
-            pingTask = new PingTask();
-            timer.scheduleAtFixedRate(pingTask, INITIAL_DELAY, PING_PERIOD);
+            schedule(INITIAL_DELAY);
         }
     }
 
     /**
-     * Disables the ping task, but does not stop the underlying timer.
+     * Disables the ping task, but does not close its connection.
      */
-    public void stop() {
+    public synchronized void stop() {
         if(pingTask != null)
-            pingTask.cancel();
-        timer.purge();
+            pingTask.cancel(false);
         running = false;
     }
 
     /**
-     * Permanently disables the underlying timer.
-     * If the timer is currently running, stop() will be called before the timer is disabled.
+     * Permanently disables the ping task, stops its thread and closes its connection.
+     * If the task is currently running, stop() will be called before the connection is closed.
      */
-    public void shutdown() {
+    public synchronized void shutdown() {
         if(running)
             stop();
-        timer.cancel();
+        if(scheduler != null)
+            scheduler.shutdownNow();
+        if(client != null)
+            client.close();
     }
 
-    private class PingTask extends TimerTask {
+    /**
+     * Gets the health of SpaceBukkit as seen by the pings.
+     * Times are in milliseconds since the epoch, 0 if it never happened; latencies are in microseconds.
+     * @return Last success and failure, latency of the last ping and percentiles over the last hour, consecutive
+     *         failures and the delay before the next ping
+     */
+    public Map<String, Object> getHealth() {
+        final long[] percentiles = latency.getPercentiles(50.0, 99.0);
+        final Map<String, Object> health = new LinkedHashMap<String, Object>();
+        health.put("up", lastSuccess > 0L && consecutiveFailures == 0);
+        health.put("lastSuccess", lastSuccess);
+        health.put("lastFailure", lastFailure);
+        health.put("lastError", lastError);
+        health.put("consecutiveFailures", consecutiveFailures);
+        health.put("latency", lastLatency);
+        health.put("p50", percentiles[0]);
+        health.put("p99", percentiles[1]);
+        health.put("pings", latency.getCount());
+        health.put("nextPingIn", nextDelay());
+        return health;
+    }
+
+    private synchronized void schedule(final long delay) {
+        if(running)
+            pingTask = scheduler.schedule(new PingTask(), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Doubles the delay between two pings for every failure in a row, up to {@link #MAX_PERIOD}
+     */
+    private long nextDelay() {
+        final int failures = Math.min(consecutiveFailures, 16);
+        return failures == 0 ? PING_PERIOD : Math.min(MAX_PERIOD, (long) PING_PERIOD << failures);
+    }
+
+    private void succeeded(final long micros) {
+        if(consecutiveFailures > 0)
+            System.err.println("SpaceBukkit responded to ping request again after " + consecutiveFailures
+                    + " failed attempt(s).");
+        consecutiveFailures = 0;
+        lastSuccess = System.currentTimeMillis();
+        lastLatency = micros;
+        latency.record(micros);
+    }
+
+    private void failed(final String error) {
+        if(consecutiveFailures == 0)
+            System.err.println("Warning: SpaceBukkit failed to respond to ping request. Is the plugin running?");
+        consecutiveFailures++;
+        lastFailure = System.currentTimeMillis();
+        lastError = error;
+    }
+
+    private class PingTask implements Runnable {
 
         /**
-         * Pings the SpaceBukkit plugin and prints a warning if it could not be reached.
+         * Pings the SpaceBukkit plugin and schedules the next ping.
          */
         public void run() {
-
-            if (RemoteToolkit.isRunning()) {
-                URLConnection      urlConn = null;
-                BufferedReader br = null;
-                try {
-                    urlConn = pingUrl.openConnection();
-
-                    urlConn.setConnectTimeout(TIMEOUT);
-                    urlConn.setReadTimeout(TIMEOUT);
-                    urlConn.setDoInput(true);
-                    urlConn.setUseCaches(false);
-
-                    urlConn.connect();
-                    br = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
-
-                    String read = br.readLine();
-
-                    if(read == null || !read.trim().equals("Pong!"))
-                        System.err.println("Warning: SpaceBukkit failed to respond to ping request. Is the plugin running?");
-
-                } catch (MalformedURLException e) {
-                    System.err.println("Unexpected exception: "+e);
-                    e.printStackTrace();
-                } catch(SocketTimeoutException e) {
-                    System.err.println("Warning: SpaceBukkit failed to respond to ping request. Is the plugin running?");
-                } catch (IOException e) {
-                    System.err.println("Unexpected exception: "+e);
-                    e.printStackTrace();
-                }finally {
+            try {
+                if (RemoteToolkit.isRunning()) {
+                    final long start = System.nanoTime();
                     try {
-                        if(br != null)
-                            br.close();
-                    } catch(IOException e) {}
+                        final String read = client.ping();
+                        if(read == null || !read.trim().equals("Pong!"))
+                            failed("Unexpected answer: " + read);
+                        else
+                            succeeded((System.nanoTime() - start) / 1000L);
+                    } catch(SocketTimeoutException e) {
+                        failed("Timed out");
+                    } catch (IOException e) {
+                        failed(String.valueOf(e));
+                    }
                 }
+            } finally {
+                schedule(nextDelay());
             }
-
         }
 
     }
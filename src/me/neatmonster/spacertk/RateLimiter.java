@@ -0,0 +1,226 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits what a single panel client may ask of the wrapper. Each client address gets a cap on its open
+ * connections and two token buckets: one every request draws from, and a stricter one for the heavy actions,
+ * such as backups or world downloads. A client over its limits is answered with a 429 Too Many Requests.
+ */
+public class RateLimiter {
+    private static final long SWEEP_INTERVAL = 60000L; //Milliseconds between two sweeps of the idle clients
+
+    private final ConcurrentMap<InetAddress, Client> clients              = new ConcurrentHashMap<InetAddress, Client>();
+    private final double                             requestRate;
+    private final int                                requestBurst;
+    private final double                             heavyRate;
+    private final int                                heavyBurst;
+    private final int                                maxConnections;
+    private final AtomicLong                         rejectedConnections = new AtomicLong();
+    private final AtomicLong                         rejectedRequests    = new AtomicLong();
+    private final AtomicLong                         rejectedHeavy       = new AtomicLong();
+    private volatile long                            lastSweep           = System.currentTimeMillis();
+
+    /**
+     * Creates a new rate limiter
+     * @param requestRate Requests per second a client may send in the long run, 0 for no limit
+     * @param requestBurst Requests a client may send at once after being idle
+     * @param heavyRate Heavy actions per minute a client may call in the long run, 0 for no limit
+     * @param heavyBurst Heavy actions a client may call at once after being idle
+     * @param maxConnections Connections a client may have open at once, 0 for no limit
+     */
+    public RateLimiter(final double requestRate, final int requestBurst, final double heavyRate, final int heavyBurst,
+            final int maxConnections) {
+        this.requestRate = requestRate / 1000.0;
+        this.requestBurst = Math.max(1, requestBurst);
+        this.heavyRate = heavyRate / 60000.0;
+        this.heavyBurst = Math.max(1, heavyBurst);
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Admits a new connection of a client, to be given back with {@link #releaseConnection(InetAddress)} once closed.
+     * Only called by the listening thread, which is also the one forgetting idle clients.
+     * @param address Address of the client
+     * @return If the connection is admitted
+     */
+    boolean acquireConnection(final InetAddress address) {
+        sweep();
+        final Client client = clientOf(address);
+        if (client.connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            client.connections.decrementAndGet();
+            rejectedConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back a connection admitted by {@link #acquireConnection(InetAddress)}
+     * @param address Address of the client
+     */
+    void releaseConnection(final InetAddress address) {
+        final Client client = clients.get(address);
+        if (client != null)
+            client.connections.decrementAndGet();
+    }
+
+    /**
+     * Draws the tokens of a request from the buckets of a client
+     * @param address Address of the client
+     * @param calls Number of actions called by the request, at least 1
+     * @param heavyCalls Number of those actions that are heavy
+     * @return 0 if the request may proceed, otherwise milliseconds before it would be accepted
+     */
+    long acquire(final InetAddress address, final int calls, final int heavyCalls) {
+        final Client client = clientOf(address);
+        final long now = System.nanoTime();
+        synchronized (client) {
+            final long requestWait = requestRate <= 0.0 ? 0L
+                    : client.requests.waitFor(Math.max(1, calls), requestRate, requestBurst, now);
+            final long heavyWait = heavyRate <= 0.0 || heavyCalls == 0 ? 0L
+                    : client.heavy.waitFor(heavyCalls, heavyRate, heavyBurst, now);
+            if (requestWait > 0L || heavyWait > 0L) {
+                (heavyWait > 0L ? rejectedHeavy : rejectedRequests).incrementAndGet();
+                return Math.max(requestWait, heavyWait);
+            }
+            if (requestRate > 0.0)
+                client.requests.take(Math.max(1, calls));
+            if (heavyRate > 0.0)
+                client.heavy.take(heavyCalls);
+            return 0L;
+        }
+    }
+
+    /**
+     * Gets the number of connections, requests and heavy requests refused so far
+     * @return Map of the kinds of rejection to their count
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("connections", rejectedConnections.get());
+        result.put("requests", rejectedRequests.get());
+        result.put("heavy", rejectedHeavy.get());
+        result.put("clients", clients.size());
+        return result;
+    }
+
+    /**
+     * Writes the rejection counters in the plain text exposition format read by metrics scrapers
+     * @param out Builder to write to
+     */
+    public void writeText(final StringBuilder out) {
+        out.append("# TYPE spacertk_panel_rejected_total counter\n");
+        out.append("spacertk_panel_rejected_total{reason=\"connections\"} ").append(rejectedConnections.get())
+                .append('\n');
+        out.append("spacertk_panel_rejected_total{reason=\"requests\"} ").append(rejectedRequests.get()).append('\n');
+        out.append("spacertk_panel_rejected_total{reason=\"heavy\"} ").append(rejectedHeavy.get()).append('\n');
+    }
+
+    private Client clientOf(final InetAddress address) {
+        Client client = clients.get(address);
+        if (client == null) {
+            final Client created = new Client(requestBurst, heavyBurst);
+            client = clients.putIfAbsent(address, created);
+            if (client == null)
+                client = created;
+        }
+        return client;
+    }
+
+    /**
+     * Forgets the clients without connections whose buckets are full again, so the map does not grow forever
+     */
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL)
+            return;
+        lastSweep = now;
+        final long nanos = System.nanoTime();
+        for (final Iterator<Client> it = clients.values().iterator(); it.hasNext();) {
+            final Client client = it.next();
+            synchronized (client) {
+                if (client.connections.get() == 0
+                        && client.requests.isFull(requestRate, requestBurst, nanos)
+                        && client.heavy.isFull(heavyRate, heavyBurst, nanos))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Connections and buckets of a single client address
+     */
+    private static class Client {
+        final AtomicInteger connections = new AtomicInteger();
+        final TokenBucket   requests;
+        final TokenBucket   heavy;
+
+        Client(final int requestBurst, final int heavyBurst) {
+            requests = new TokenBucket(requestBurst);
+            heavy = new TokenBucket(heavyBurst);
+        }
+    }
+
+    /**
+     * Bucket refilled continuously at a given rate up to its burst size. Not thread safe, callers lock the client.
+     */
+    private static class TokenBucket {
+        private double tokens;
+        private long   updated = System.nanoTime();
+
+        TokenBucket(final int burst) {
+            tokens = burst;
+        }
+
+        /**
+         * Refills the bucket and computes how long a draw must wait. A draw larger than the burst only waits for a
+         * full bucket, and taking it leaves the bucket in debt.
+         * @return 0 if the tokens are available, otherwise milliseconds before they are
+         */
+        long waitFor(final int count, final double ratePerMilli, final int burst, final long now) {
+            refill(ratePerMilli, burst, now);
+            final int needed = Math.min(count, burst);
+            if (tokens >= needed)
+                return 0L;
+            return (long) Math.ceil((needed - tokens) / ratePerMilli);
+        }
+
+        void take(final int count) {
+            tokens -= count;
+        }
+
+        boolean isFull(final double ratePerMilli, final int burst, final long now) {
+            if (ratePerMilli <= 0.0)
+                return true;
+            refill(ratePerMilli, burst, now);
+            return tokens >= burst;
+        }
+
+        private void refill(final double ratePerMilli, final int burst, final long now) {
+            tokens = Math.min(burst, tokens + (now - updated) / 1000000.0 * ratePerMilli);
+            updated = now;
+        }
+    }
+}
@@ -35,21 +35,84 @@ public class RemoteToolkit {
     public static final PropertiesFile PROPERTIES = getProperties();
 
     /**
-     * Sends a command from the console
+     * Private members of the Wrapper, looked up and made accessible once when first used rather than on every call.
+     * A member missing from the running wrapper is null, and the calls using it fail as they did before.
+     */
+    private static final class WrapperMembers {
+        static final Field  CONSOLE             = field("console");
+        static final Field  RESTARTING          = field("restarting");
+        static final Field  SERVER_RUNNING      = field("serverRunning");
+        static final Field  PAUSE_MODE          = field("pauseMode");
+        static final Field  SAVE_ON_SERVER_STOP = field("saveOnServerStop");
+        static final Field  TOOLKIT_PROPERTIES  = field("toolkitProperties");
+        static final Method CANCEL_TASKS        = method("cancelTasks", Scheduler.Type.class);
+        static final Method SAVE_AND_WAIT       = method("saveAndWait");
+
+        private static Field field(final String name) {
+            try {
+                final Field field = Wrapper.class.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (final Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private static Method method(final String name, final Class<?>... parameterTypes) {
+            try {
+                final Method method = Wrapper.class.getDeclaredMethod(name, parameterTypes);
+                method.setAccessible(true);
+                return method;
+            } catch (final Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Sends a command from the console. The command is queued and written shortly after, together with the
+     * commands sent in the meantime.
      * @param command Command to send
      */
-    public static void consoleCommand(String command) {
+    public static void consoleCommand(final String command) {
+        final ConsoleWriter writer = SpaceRTK.getInstance().consoleWriter;
+        if (writer == null)
+            consoleCommandAndWait(command);
+        else
+            writer.write(command);
+    }
+
+    /**
+     * Sends a command from the console, returning once it and the commands queued before it are written
+     * @param command Command to send
+     * @return If the command was written
+     */
+    public static boolean consoleCommandAndWait(String command) {
+        final ConsoleWriter writer = SpaceRTK.getInstance().consoleWriter;
+        if (writer != null)
+            return writer.writeAndWait(command);
         try {
-            final Field field = Wrapper.getInstance().getClass().getDeclaredField("console");
-            field.setAccessible(true);
-            final OutputStream console = (OutputStream) field.get(Wrapper.getInstance());
             if (!command.endsWith("\n"))
                 command = command + "\n";
-            console.write(command.getBytes());
+            final OutputStream console = getConsole();
+            console.write(command.getBytes("UTF-8"));
             console.flush();
+            return true;
         } catch (final Exception e) {
             e.printStackTrace();
         }
+        return false;
+    }
+
+    /**
+     * Gets the stream to the console of the server
+     * @return Console stream
+     * @throws IllegalAccessException If the stream cannot be read from the wrapper
+     */
+    static OutputStream getConsole() throws IllegalAccessException {
+        return (OutputStream) WrapperMembers.CONSOLE.get(Wrapper.getInstance());
     }
 
     /**
@@ -76,31 +139,19 @@ public class RemoteToolkit {
      */
     public static void forceStop() {
         try {
-            final Field restarting = Wrapper.getInstance().getClass().getDeclaredField("restarting");
-            final Field serverRunning = Wrapper.getInstance().getClass().getDeclaredField("serverRunning");
-            final Field pauseMode = Wrapper.getInstance().getClass().getDeclaredField("pauseMode");
-            final Field saveOnServerStop = Wrapper.getInstance().getClass().getDeclaredField("saveOnServerStop");
-            restarting.setAccessible(true);
-            serverRunning.setAccessible(true);
-            pauseMode.setAccessible(true);
-            saveOnServerStop.setAccessible(true);
-            restarting.setBoolean(Wrapper.getInstance(), false);
-
-            if(serverRunning.getBoolean(Wrapper.getInstance())) {
-                Method cancelTasks = Wrapper.getInstance().getClass().getDeclaredMethod("cancelTasks", Scheduler.Type.class);
-                Method saveAndWait = Wrapper.getInstance().getClass().getDeclaredMethod("saveAndWait");
-                cancelTasks.setAccessible(true);
-                saveAndWait.setAccessible(true);
-
-                cancelTasks.invoke(Wrapper.getInstance(), Scheduler.Type.SAVE);
-
-                if(saveOnServerStop.getBoolean(Wrapper.getInstance()))
-                    saveAndWait.invoke(Wrapper.getInstance());
-                consoleCommand("kickallstop");
+            final Wrapper wrapper = Wrapper.getInstance();
+            WrapperMembers.RESTARTING.setBoolean(wrapper, false);
+
+            if(WrapperMembers.SERVER_RUNNING.getBoolean(wrapper)) {
+                WrapperMembers.CANCEL_TASKS.invoke(wrapper, Scheduler.Type.SAVE);
+
+                if(WrapperMembers.SAVE_ON_SERVER_STOP.getBoolean(wrapper))
+                    WrapperMembers.SAVE_AND_WAIT.invoke(wrapper);
+                consoleCommandAndWait("kickallstop");
                 Thread.sleep(1000);
-                consoleCommand("stop");
+                consoleCommandAndWait("stop");
             } else {
-                pauseMode.setBoolean(Wrapper.getInstance(), false);
+                WrapperMembers.PAUSE_MODE.setBoolean(wrapper, false);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -112,32 +163,19 @@ public class RemoteToolkit {
      */
     public static void hold() {
         try {
-            final Field restarting = Wrapper.getInstance().getClass().getDeclaredField("restarting");
-            final Field serverRunning = Wrapper.getInstance().getClass().getDeclaredField("serverRunning");
-            final Field pauseMode = Wrapper.getInstance().getClass().getDeclaredField("pauseMode");
-            final Field saveOnServerStop = Wrapper.getInstance().getClass().getDeclaredField("saveOnServerStop");
-            restarting.setAccessible(true);
-            serverRunning.setAccessible(true);
-            pauseMode.setAccessible(true);
-            saveOnServerStop.setAccessible(true);
-
-            if (serverRunning.getBoolean(Wrapper.getInstance())) {
-                Method cancelTasks = Wrapper.getInstance().getClass().getDeclaredMethod("cancelTasks", Scheduler.Type.class);
-                Method saveAndWait = Wrapper.getInstance().getClass().getDeclaredMethod("saveAndWait");
-                cancelTasks.setAccessible(true);
-                saveAndWait.setAccessible(true);
-
-                restarting.setBoolean(Wrapper.getInstance(), true);
-                pauseMode.setBoolean(Wrapper.getInstance(), true);
-
-                cancelTasks.invoke(Wrapper.getInstance(), Scheduler.Type.SAVE);
-
-                if(saveOnServerStop.getBoolean(Wrapper.getInstance()))
-                    saveAndWait.invoke(Wrapper.getInstance());
-
-                consoleCommand("kickallhold");
+            final Wrapper wrapper = Wrapper.getInstance();
+            if (WrapperMembers.SERVER_RUNNING.getBoolean(wrapper)) {
+                WrapperMembers.RESTARTING.setBoolean(wrapper, true);
+                WrapperMembers.PAUSE_MODE.setBoolean(wrapper, true);
+
+                WrapperMembers.CANCEL_TASKS.invoke(wrapper, Scheduler.Type.SAVE);
+
+                if(WrapperMembers.SAVE_ON_SERVER_STOP.getBoolean(wrapper))
+                    WrapperMembers.SAVE_AND_WAIT.invoke(wrapper);
+
+                consoleCommandAndWait("kickallhold");
                 Thread.sleep(1000);
-                consoleCommand("stop");
+                consoleCommandAndWait("stop");
 
             }
         } catch (Exception e) {
@@ -169,20 +207,26 @@ public class RemoteToolkit {
      */
     public static boolean isRunning() {
         try {
-            final Field field = Wrapper.getInstance().getClass().getDeclaredField("serverRunning");
-            field.setAccessible(true);
-            return (Boolean) field.get(Wrapper.getInstance());
+            return WrapperMembers.SERVER_RUNNING.getBoolean(Wrapper.getInstance());
         } catch (final Exception e) {
             e.printStackTrace();
         }
         return false;
     }
 
+    /**
+     * Waits for the server to stop, for at most the configured stop timeout
+     * @return If the server is stopped, false if it is still running when the timeout elapses
+     */
+    public static boolean awaitStop() {
+        return SpaceRTK.getInstance().serverStateMonitor.awaitStopped(SpaceRTK.getInstance().stopTimeout);
+    }
+
     /**
      * Saves the server
      */
     public static void save() {
-        consoleCommand("save-all");
+        consoleCommandAndWait("save-all");
     }
 
     /**
@@ -198,13 +242,9 @@ public class RemoteToolkit {
      */
     private static PropertiesFile getProperties() {
         try {
-            Field field = Wrapper.getInstance().getClass().getDeclaredField("toolkitProperties");
-            field.setAccessible(true);
-            PropertiesFile properties = (PropertiesFile)field.get(Wrapper.getInstance());
+            PropertiesFile properties = (PropertiesFile)WrapperMembers.TOOLKIT_PROPERTIES.get(Wrapper.getInstance());
             return properties;
-        } catch (NoSuchFieldException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
+        } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
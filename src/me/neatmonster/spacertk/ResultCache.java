@@ -0,0 +1,224 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.neatmonster.spacertk.actions.ActionOptions;
+import me.neatmonster.spacertk.actions.ActionOptionsRegistry;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Caches the results of the actions declaring a cache TTL in their {@link ActionOptions}.
+ * Results are kept per action and per arguments, each action having its own LRU of at most
+ * {@link ActionOptions#cacheSize()} entries. An action is invalidated by the actions naming it in their
+ * {@link ActionOptions#invalidates()}, or explicitly through {@link #invalidate(String)}.
+ */
+public class ResultCache {
+    private final ConcurrentMap<String, ActionCache> caches = new ConcurrentHashMap<String, ActionCache>();
+
+    /**
+     * Gets a cached result
+     * @param action Name of the action, any of its aliases
+     * @param options Options of the action
+     * @param arguments Arguments of the call
+     * @return The cached result, null if there is none or it expired
+     */
+    Object get(final String action, final ActionOptions options, final Object[] arguments) {
+        return cacheOf(action, options).get(keyOf(arguments));
+    }
+
+    /**
+     * Gets the generation of the cache of an action, to be given back when storing a result
+     * @param action Name of the action, any of its aliases
+     * @param options Options of the action
+     * @return Current generation of the cache
+     */
+    long generation(final String action, final ActionOptions options) {
+        return cacheOf(action, options).generation.get();
+    }
+
+    /**
+     * Stores a result, unless the action was invalidated since its execution started
+     * @param action Name of the action, any of its aliases
+     * @param options Options of the action
+     * @param arguments Arguments of the call
+     * @param result Result of the call
+     * @param generation Generation of the cache when the execution started
+     */
+    void put(final String action, final ActionOptions options, final Object[] arguments, final Object result,
+            final long generation) {
+        cacheOf(action, options).put(keyOf(arguments), result, generation);
+    }
+
+    /**
+     * Forgets every cached result of an action
+     * @param action Name of the action, any of its aliases
+     */
+    public void invalidate(final String action) {
+        final ActionCache cache = caches.get(canonicalName(action));
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Forgets every cached result
+     */
+    public void invalidateAll() {
+        for (final ActionCache cache : caches.values())
+            cache.clear();
+    }
+
+    /**
+     * Gets the hits, misses and size of the cache of every action that has been called
+     * @return Map of the names of the actions to their statistics
+     */
+    public Map<String, Map<String, Object>> toMap() {
+        final Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+        for (final Map.Entry<String, ActionCache> entry : new TreeMap<String, ActionCache>(caches).entrySet()) {
+            final ActionCache cache = entry.getValue();
+            final long hits = cache.hits.get();
+            final long misses = cache.misses.get();
+            final Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("hits", hits);
+            values.put("misses", misses);
+            values.put("hitRatio", hits + misses == 0L ? 0.0 : (double) hits / (hits + misses));
+            values.put("evictions", cache.evictions.get());
+            values.put("size", cache.size());
+            result.put(entry.getKey(), values);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the hits and misses of every cache in the plain text exposition format read by metrics scrapers
+     * @param out Builder to write to
+     */
+    public void writeText(final StringBuilder out) {
+        final Map<String, ActionCache> sorted = new TreeMap<String, ActionCache>(caches);
+        out.append("# TYPE spacertk_cache_hits_total counter\n");
+        for (final Map.Entry<String, ActionCache> entry : sorted.entrySet())
+            out.append("spacertk_cache_hits_total{action=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().hits.get()).append('\n');
+        out.append("# TYPE spacertk_cache_misses_total counter\n");
+        for (final Map.Entry<String, ActionCache> entry : sorted.entrySet())
+            out.append("spacertk_cache_misses_total{action=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().misses.get()).append('\n');
+    }
+
+    private ActionCache cacheOf(final String action, final ActionOptions options) {
+        final String name = canonicalName(action);
+        ActionCache cache = caches.get(name);
+        if (cache == null) {
+            final ActionCache created = new ActionCache(options.cacheTtl(), Math.max(1, options.cacheSize()));
+            cache = caches.putIfAbsent(name, created);
+            if (cache == null)
+                cache = created;
+        }
+        return cache;
+    }
+
+    private static String canonicalName(final String action) {
+        final ActionOptionsRegistry registry = SpaceRTK.getInstance().actionOptions;
+        if (registry == null)
+            return action;
+        final String name = registry.getCanonicalName(action);
+        return name == null ? action : name;
+    }
+
+    private static String keyOf(final Object[] arguments) {
+        return JSONValue.toJSONString(Arrays.asList(arguments));
+    }
+
+    /**
+     * Gets a key identifying a call, the same whatever alias the action is called with
+     * @param action Name of the action, any of its aliases
+     * @param arguments Arguments of the call
+     * @return Key of the call
+     */
+    static String keyOf(final String action, final Object[] arguments) {
+        return canonicalName(action) + keyOf(arguments);
+    }
+
+    /**
+     * Results of a single action, the least recently used being evicted first
+     */
+    private static class ActionCache {
+        final AtomicLong                        generation = new AtomicLong();
+        final AtomicLong                        hits       = new AtomicLong();
+        final AtomicLong                        misses     = new AtomicLong();
+        final AtomicLong                        evictions  = new AtomicLong();
+        private final long                      ttl;
+        private final Map<String, CachedResult> entries;
+
+        ActionCache(final long ttl, final int maxSize) {
+            this.ttl = ttl;
+            entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, CachedResult> eldest) {
+                    if (size() <= maxSize)
+                        return false;
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            };
+        }
+
+        synchronized Object get(final String key) {
+            final CachedResult entry = entries.get(key);
+            if (entry != null && entry.expires - System.currentTimeMillis() > 0L) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if (entry != null)
+                entries.remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        synchronized void put(final String key, final Object result, final long expectedGeneration) {
+            if (generation.get() == expectedGeneration)
+                entries.put(key, new CachedResult(result, System.currentTimeMillis() + ttl));
+        }
+
+        synchronized void clear() {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static class CachedResult {
+        final Object result;
+        final long   expires;
+
+        CachedResult(final Object result, final long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import me.neatmonster.spacemodule.SpaceModule;
+import me.neatmonster.spacertk.event.ServerStateEvent;
+
+/**
+ * Watches the state of the server and lets threads wait for it to stop or start.
+ * The wrapper does not tell when the server stops, so its state is checked on the shared scheduler: every
+ * second normally, and every {@link #WAIT_PERIOD} milliseconds while a thread is waiting. Every change fires a
+ * {@link ServerStateEvent} on the toolkit's event dispatcher and wakes the waiting threads.
+ */
+public class ServerStateMonitor {
+    private static final long IDLE_PERIOD = 1000L; //Milliseconds between two checks while nobody waits
+    private static final long WAIT_PERIOD = 50L;   //Milliseconds between two checks while a thread waits
+
+    private final ScheduledExecutorService scheduler;
+    private final Object                   checkLock  = new Object(); //Keeps checks and their events in order
+    private ScheduledFuture<?>             task;
+    private long                           taskPeriod;
+    private long                           generation = 0L;
+    private boolean                        running;
+    private int                            waiters = 0;
+
+    /**
+     * Creates a new server state monitor
+     * @param scheduler Scheduler to check the state of the server on
+     */
+    public ServerStateMonitor(final ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts watching the server
+     */
+    public synchronized void start() {
+        running = RemoteToolkit.isRunning();
+        schedule(IDLE_PERIOD);
+    }
+
+    /**
+     * Stops watching the server
+     */
+    public synchronized void stop() {
+        if (task != null)
+            task.cancel(false);
+        task = null;
+        generation++;
+    }
+
+    /**
+     * Waits for the server to stop
+     * @param timeout Maximum milliseconds to wait
+     * @return If the server is stopped, false if it is still running when the timeout elapses
+     */
+    public boolean awaitStopped(final long timeout) {
+        return await(false, timeout);
+    }
+
+    /**
+     * Waits for the server to start
+     * @param timeout Maximum milliseconds to wait
+     * @return If the server is running, false if it is still stopped when the timeout elapses
+     */
+    public boolean awaitStarted(final long timeout) {
+        return await(true, timeout);
+    }
+
+    private boolean await(final boolean state, final long timeout) {
+        check();
+        final long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            if (running == state)
+                return true;
+            waiters++;
+            if (task != null && taskPeriod > WAIT_PERIOD) {
+                task.cancel(false);
+                schedule(0L); // Check often from now on, rather than after the current idle period.
+            }
+            try {
+                long remaining;
+                while (running != state && (remaining = deadline - System.currentTimeMillis()) > 0L)
+                    wait(remaining);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters--;
+            }
+            return running == state;
+        }
+    }
+
+    /**
+     * Reads the state of the server, firing an event and waking the waiting threads if it changed.
+     * Checks run one at a time, so a reading is never applied after a more recent one.
+     */
+    private void check() {
+        synchronized (checkLock) {
+            final boolean now = RemoteToolkit.isRunning();
+            synchronized (this) {
+                if (now == running)
+                    return;
+                running = now;
+                notifyAll();
+            }
+            try {
+                SpaceModule.getInstance().getEdt().fireToolkitEvent(new ServerStateEvent(now, System.currentTimeMillis()));
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void schedule(final long delay) {
+        taskPeriod = delay;
+        task = scheduler.schedule(new Check(++generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A single check, scheduling the next one unless it was replaced in the meantime
+     */
+    private class Check implements Runnable {
+        private final long scheduledGeneration;
+
+        Check(final long scheduledGeneration) {
+            this.scheduledGeneration = scheduledGeneration;
+        }
+
+        @Override
+        public void run() {
+            check();
+            synchronized (ServerStateMonitor.this) {
+                if (scheduledGeneration == generation)
+                    schedule(waiters > 0 ? WAIT_PERIOD : IDLE_PERIOD);
+            }
+        }
+    }
+}
@@ -17,20 +17,30 @@ package me.neatmonster.spacertk;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
 
 import me.neatmonster.spacemodule.SpaceModule;
+import me.neatmonster.spacemodule.api.ActionHandler;
 import me.neatmonster.spacemodule.api.ActionsManager;
+import me.neatmonster.spacertk.actions.ActionOptionsRegistry;
 import me.neatmonster.spacertk.actions.FileActions;
+import me.neatmonster.spacertk.actions.MetricsActions;
 import me.neatmonster.spacertk.actions.PluginActions;
 import me.neatmonster.spacertk.actions.SchedulerActions;
 import me.neatmonster.spacertk.actions.ServerActions;
+import me.neatmonster.spacertk.actions.TaskActions;
 import me.neatmonster.spacertk.event.BackupEvent;
+import me.neatmonster.spacertk.metrics.ActionMetrics;
 import me.neatmonster.spacertk.plugins.PluginsManager;
 import me.neatmonster.spacertk.scheduler.Scheduler;
+import me.neatmonster.spacertk.utilities.backup.BackupCodecs;
 import me.neatmonster.spacertk.utilities.backup.BackupManager;
 import me.neatmonster.spacertk.utilities.Format;
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
+import me.neatmonster.spacertk.utilities.PluginClient;
 
 import org.bukkit.configuration.file.YamlConfiguration;
 
@@ -52,7 +62,17 @@ public class SpaceRTK {
     }
 
     public ActionsManager actionsManager;
+    public ActionOptionsRegistry actionOptions;
+    public ActionMetrics  actionMetrics = new ActionMetrics();
+    public ActionMetrics  pluginMetrics = new ActionMetrics("spacertk_plugin_call");
+    public ResultCache    resultCache = new ResultCache();
+    public Authenticator  authenticator = new Authenticator();
     public PanelListener  panelListener;
+    public TaskManager    taskManager;
+    public PluginClient   pluginClient;
+    public ScheduledExecutorService scheduler;
+    public ServerStateMonitor serverStateMonitor;
+    public ConsoleWriter  consoleWriter;
     public PluginsManager pluginsManager;
 
     public String         type = null;
@@ -63,6 +83,39 @@ public class SpaceRTK {
     public File           worldContainer;
     public String         backupDirName;
     public boolean        backupLogs;
+    public boolean        backupIncremental;
+    public int            backupMaxIncrements;
+    public String         backupTarget;
+    public int            backupCompressionThreads;
+    public int            backupCompressionLevel;
+    public String         backupCodecs;
+    public long           stopTimeout;
+    public long           consoleBatchWindow;
+    public int            panelWorkerThreads;
+    public int            panelQueueSize;
+    public String         panelRejectionPolicy;
+    public int            panelKeepAliveTimeout;
+    public int            panelKeepAliveMaxRequests;
+    public int            panelBatchThreads;
+    public long           panelBatchActionTimeout;
+    public int            panelMaxRequestLine;
+    public int            panelMaxHeaderLength;
+    public int            panelMaxBodyLength;
+    public int            panelStreamThreshold;
+    public boolean        panelCompression;
+    public int            panelCompressionThreshold;
+    public long           panelProgressInterval;
+    public double         panelRateLimit;
+    public int            panelRateBurst;
+    public double         panelHeavyRateLimit;
+    public int            panelHeavyRateBurst;
+    public int            panelMaxClientConnections;
+    public int            panelTaskThreads;
+    public int            panelTaskQueueSize;
+    public long           panelTaskRetention;
+    public int            pluginConnectTimeout;
+    public int            pluginReadTimeout;
+    public int            pluginPoolSize;
     public SpaceModule    spaceModule;
 
     private BackupManager backupManager;
@@ -91,7 +144,12 @@ public class SpaceRTK {
     public void onDisable() {
         try {
             panelListener.stopServer();
+            taskManager.shutdown();
+            pluginClient.close();
+            consoleWriter.close();
+            scheduler.shutdownNow();
             pingListener.shutdown();
+            serverStateMonitor.stop();
         } catch (final Exception e) {
             e.printStackTrace();
         }
@@ -107,6 +165,39 @@ public class SpaceRTK {
         worldContainer = new File(config.getString("General.worldContainer", "."));
         backupDirName = config.getString("General.backupDirectory", "Backups");
         backupLogs = config.getBoolean("General.backupLogs", true);
+        backupIncremental = config.getBoolean("General.incrementalBackups", false);
+        backupMaxIncrements = config.getInt("General.maxIncrements", 6);
+        backupTarget = config.getString("General.backupTarget", "zip");
+        backupCompressionThreads = config.getInt("General.backupCompressionThreads", Runtime.getRuntime().availableProcessors());
+        backupCompressionLevel = config.getInt("General.backupCompressionLevel", 6);
+        backupCodecs = config.getString("General.backupCodecs", BackupCodecs.DEFAULT_SELECTION);
+        stopTimeout = config.getLong("General.stopTimeout", 120000L);
+        consoleBatchWindow = config.getLong("General.consoleBatchWindow", 10L);
+        panelWorkerThreads = config.getInt("Panel.workerThreads", 8);
+        panelQueueSize = config.getInt("Panel.queueSize", 64);
+        panelRejectionPolicy = config.getString("Panel.rejectionPolicy", "REJECT");
+        panelKeepAliveTimeout = config.getInt("Panel.keepAliveTimeout", 5000);
+        panelKeepAliveMaxRequests = config.getInt("Panel.keepAliveMaxRequests", 100);
+        panelBatchThreads = config.getInt("Panel.batchThreads", 4);
+        panelBatchActionTimeout = config.getLong("Panel.batchActionTimeout", 10000L);
+        panelMaxRequestLine = config.getInt("Panel.maxRequestLine", 262144);
+        panelMaxHeaderLength = config.getInt("Panel.maxHeaderLength", 16384);
+        panelMaxBodyLength = config.getInt("Panel.maxBodyLength", 16777216);
+        panelStreamThreshold = config.getInt("Panel.streamThreshold", 262144);
+        panelCompression = config.getBoolean("Panel.compression", true);
+        panelCompressionThreshold = config.getInt("Panel.compressionThreshold", 1024);
+        panelProgressInterval = config.getLong("Panel.progressInterval", 250L);
+        panelRateLimit = config.getDouble("Panel.rateLimit", 50.0);
+        panelRateBurst = config.getInt("Panel.rateBurst", 100);
+        panelHeavyRateLimit = config.getDouble("Panel.heavyRateLimit", 10.0);
+        panelHeavyRateBurst = config.getInt("Panel.heavyRateBurst", 5);
+        panelMaxClientConnections = config.getInt("Panel.maxClientConnections", 32);
+        panelTaskThreads = config.getInt("Panel.taskThreads", 2);
+        panelTaskQueueSize = config.getInt("Panel.taskQueueSize", 16);
+        panelTaskRetention = config.getLong("Panel.taskRetention", 600000L);
+        pluginConnectTimeout = config.getInt("Plugin.connectTimeout", 5000);
+        pluginReadTimeout = config.getInt("Plugin.readTimeout", 30000);
+        pluginPoolSize = config.getInt("Plugin.poolSize", 4);
 
         bindAddress = spaceModule.bindAddress;
         salt = spaceModule.salt;
@@ -120,7 +211,21 @@ public class SpaceRTK {
             e.printStackTrace();
         }
 
+        pluginClient = new PluginClient("localhost", port, Math.max(0, pluginConnectTimeout),
+                Math.max(0, pluginReadTimeout), Math.max(0, pluginPoolSize), pluginMetrics);
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SpaceRTK Scheduler"));
         pingListener = new PingListener();
+        serverStateMonitor = new ServerStateMonitor(scheduler);
+        consoleWriter = new ConsoleWriter(scheduler, Math.max(0L, consoleBatchWindow));
+
+        actionsManager = new ActionsManager();
+        actionOptions = new ActionOptionsRegistry();
+        registerActions(FileActions.class);
+        registerActions(MetricsActions.class);
+        registerActions(PluginActions.class);
+        registerActions(SchedulerActions.class);
+        registerActions(ServerActions.class);
+        registerActions(TaskActions.class);
 
         if(backupManager == null)
             backupManager = BackupManager.getInstance();
@@ -135,15 +240,30 @@ public class SpaceRTK {
         }
 
         pluginsManager = new PluginsManager();
-        actionsManager = new ActionsManager();
-        actionsManager.register(FileActions.class);
-        actionsManager.register(PluginActions.class);
-        actionsManager.register(SchedulerActions.class);
-        actionsManager.register(ServerActions.class);
+        taskManager = new TaskManager(Math.max(1, panelTaskThreads), Math.max(1, panelTaskQueueSize),
+                Math.max(0L, panelTaskRetention));
         panelListener = new PanelListener();
         Scheduler.loadJobs();
 
         pingListener.start();
+        serverStateMonitor.start();
+    }
+
+    /**
+     * Registers the actions of a handler and their options
+     * @param handler Handler to register
+     */
+    private void registerActions(final Class<? extends ActionHandler> handler) {
+        actionsManager.register(handler);
+        actionOptions.register(handler);
+    }
+
+    /**
+     * Gets the listener pinging SpaceBukkit
+     * @return Ping listener
+     */
+    public PingListener getPingListener() {
+        return pingListener;
     }
 
     /**
@@ -0,0 +1,246 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
+
+/**
+ * Runs actions in the background for the panel, so a long action does not hold the HTTP call until it is done.
+ * A submitted action is given a task ID straight away; its state, progress and result are then read through the
+ * task actions. Finished tasks are kept for a while before being forgotten.
+ */
+public class TaskManager {
+    private static final long              WORKER_KEEP_ALIVE = 60L; //Seconds an idle worker is kept around
+    private static final int               MAX_FINISHED      = 256; //Finished tasks kept at most
+    private static final ThreadLocal<Task> CURRENT           = new ThreadLocal<Task>();
+
+    /**
+     * State of a task
+     */
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final long               retention;
+    private final Map<String, Task>  tasks = new LinkedHashMap<String, Task>();
+
+    /**
+     * Creates a new task manager
+     * @param threads Number of tasks running at once
+     * @param queueSize Number of tasks waiting for a thread before new ones are refused
+     * @param retention Milliseconds a finished task is kept before being forgotten
+     */
+    public TaskManager(final int threads, final int queueSize, final long retention) {
+        this.retention = retention;
+        workers = new ThreadPoolExecutor(threads, threads, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("SpaceRTK TaskWorker"));
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reports the progress of the task running on the current thread. Does nothing when the action was not
+     * called as a task, so actions may report their progress unconditionally.
+     * @param status What the action is currently doing
+     * @param progress Progress between 0 and 1, negative if unknown
+     */
+    public static void reportProgress(final String status, final double progress) {
+        final Task task = CURRENT.get();
+        if (task != null) {
+            task.status = status;
+            task.progress = Math.min(1.0, progress);
+        }
+    }
+
+    /**
+     * Submits an action to run in the background
+     * @param method Name of the action
+     * @param arguments Arguments of the action
+     * @return ID of the task, null if the action is unknown or too many tasks are waiting
+     */
+    public String submit(final String method, final Object[] arguments) {
+        if (!SpaceRTK.getInstance().actionsManager.contains(method))
+            return null;
+        final Task task = new Task(UUID.randomUUID().toString(), method);
+        synchronized (tasks) {
+            purge();
+            try {
+                task.future = workers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(arguments);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                return null;
+            }
+            tasks.put(task.id, task);
+        }
+        return task.id;
+    }
+
+    /**
+     * Gets the state, progress and result of a task
+     * @param id ID of the task
+     * @return Informations of the task, null if it is unknown or was forgotten
+     */
+    public Map<String, Object> getInfo(final String id) {
+        final Task task;
+        synchronized (tasks) {
+            task = tasks.get(id);
+        }
+        return task == null ? null : task.toMap(true);
+    }
+
+    /**
+     * Gets the state and progress of every known task, without their results
+     * @return Informations of the tasks, oldest first
+     */
+    public List<Map<String, Object>> getTasks() {
+        final List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        synchronized (tasks) {
+            purge();
+            for (final Task task : tasks.values())
+                result.add(task.toMap(false));
+        }
+        return result;
+    }
+
+    /**
+     * Cancels a task, interrupting it if it is running
+     * @param id ID of the task
+     * @return If the task was waiting or running and is now cancelled
+     */
+    public boolean cancel(final String id) {
+        final Task task;
+        synchronized (tasks) {
+            task = tasks.get(id);
+        }
+        if (task == null || !task.future.cancel(true))
+            return false;
+        task.finish(State.CANCELLED, null, null);
+        return true;
+    }
+
+    /**
+     * Stops the task workers, interrupting the running tasks
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Forgets the finished tasks older than the retention, and the oldest ones past {@link #MAX_FINISHED}
+     */
+    private void purge() {
+        final long now = System.currentTimeMillis();
+        int finished = 0;
+        for (final Task task : tasks.values())
+            if (task.finished > 0L)
+                finished++;
+        for (final Iterator<Task> it = tasks.values().iterator(); it.hasNext();) {
+            final Task task = it.next();
+            if (task.finished > 0L && (now - task.finished > retention || finished > MAX_FINISHED)) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * An action running in the background
+     */
+    private static class Task {
+        final String       id;
+        final String       method;
+        final long         submitted = System.currentTimeMillis();
+        volatile Future<?> future;
+        volatile State     state     = State.QUEUED;
+        volatile String    status    = null;
+        volatile double    progress  = -1.0;
+        volatile long      started   = 0L;
+        volatile long      finished  = 0L;
+        volatile Object    result    = null;
+        volatile String    error     = null;
+
+        Task(final String id, final String method) {
+            this.id = id;
+            this.method = method;
+        }
+
+        void run(final Object[] arguments) {
+            if (!start())
+                return;
+            CURRENT.set(this);
+            try {
+                final Object value = ActionDispatcher.executeOrThrow(method, arguments);
+                finish(State.DONE, value, null);
+            } catch (final Exception e) {
+                e.printStackTrace();
+                finish(State.FAILED, null, String.valueOf(e));
+            } finally {
+                CURRENT.remove();
+            }
+        }
+
+        private synchronized boolean start() {
+            if (finished > 0L)
+                return false; // Cancelled just before a worker picked it up.
+            started = System.currentTimeMillis();
+            state = State.RUNNING;
+            return true;
+        }
+
+        synchronized void finish(final State newState, final Object value, final String message) {
+            if (finished > 0L)
+                return;
+            result = value;
+            error = message;
+            if (newState == State.DONE)
+                progress = 1.0;
+            state = newState;
+            finished = System.currentTimeMillis();
+        }
+
+        Map<String, Object> toMap(final boolean withResult) {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("id", id);
+            map.put("action", method);
+            map.put("state", state.name());
+            map.put("status", status);
+            map.put("progress", progress);
+            map.put("submitted", submitted);
+            map.put("started", started);
+            map.put("finished", finished);
+            if (withResult) {
+                map.put("result", result);
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.actions;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Describes how the panel listener may execute an action.
+ * Placed next to {@link me.neatmonster.spacemodule.api.Action} on an action method; actions without it
+ * use the defaults below.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ActionOptions {
+
+    /**
+     * If the action may run concurrently with the other actions of a "multiple" call.
+     * Actions that are not parallelizable wait for the actions before them and run alone.
+     */
+    boolean parallel() default true;
+
+    /**
+     * Milliseconds the result of the action is cached for, per arguments, 0 to never cache it.
+     * Only actions without side effects should be cached.
+     */
+    long cacheTtl() default 0L;
+
+    /**
+     * Maximum number of argument combinations cached for the action, the least recently used being evicted first
+     */
+    int cacheSize() default 16;
+
+    /**
+     * Actions whose cached results are forgotten once this action completes, by any of their aliases
+     */
+    String[] invalidates() default {};
+
+    /**
+     * If concurrent calls of the action with the same arguments share a single execution.
+     * Only actions without side effects should be coalesced.
+     */
+    boolean coalesce() default false;
+
+    /**
+     * If the action does heavy disk, network or CPU work, such as a backup or a plugin download.
+     * Heavy actions are rate limited per client on their own, stricter bucket.
+     */
+    boolean heavy() default false;
+}
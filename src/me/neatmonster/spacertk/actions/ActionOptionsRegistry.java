@@ -0,0 +1,87 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.actions;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.neatmonster.spacemodule.api.Action;
+import me.neatmonster.spacemodule.api.ActionHandler;
+
+/**
+ * Maps every alias of the registered actions to its {@link ActionOptions} and to the first alias of the action
+ */
+public class ActionOptionsRegistry {
+    private final Map<String, ActionOptions> options        = new ConcurrentHashMap<String, ActionOptions>();
+    private final Map<String, String>        canonicalNames = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Registers the options of all the actions of a handler
+     * @param handler Handler to register
+     */
+    public void register(final Class<? extends ActionHandler> handler) {
+        for (final Method method : handler.getMethods()) {
+            final Action action = method.getAnnotation(Action.class);
+            if (action == null || action.aliases().length == 0)
+                continue;
+            for (final String alias : action.aliases())
+                canonicalNames.put(alias, action.aliases()[0]);
+            final ActionOptions actionOptions = method.getAnnotation(ActionOptions.class);
+            if (actionOptions == null)
+                continue;
+            for (final String alias : action.aliases())
+                options.put(alias, actionOptions);
+        }
+    }
+
+    /**
+     * Gets the options of an action
+     * @param alias Any alias of the action
+     * @return Options of the action, null if it uses the defaults
+     */
+    public ActionOptions get(final String alias) {
+        return options.get(alias);
+    }
+
+    /**
+     * Gets the name an action is known by whatever alias it is called with
+     * @param alias Any alias of the action
+     * @return First alias of the action, null if it is not registered
+     */
+    public String getCanonicalName(final String alias) {
+        return canonicalNames.get(alias);
+    }
+
+    /**
+     * Checks if an action may run concurrently with others
+     * @param alias Any alias of the action
+     * @return If the action is parallelizable
+     */
+    public boolean isParallel(final String alias) {
+        final ActionOptions actionOptions = options.get(alias);
+        return actionOptions == null || actionOptions.parallel();
+    }
+
+    /**
+     * Checks if an action does heavy work
+     * @param alias Any alias of the action
+     * @return If the action is heavy
+     */
+    public boolean isHeavy(final String alias) {
+        final ActionOptions actionOptions = options.get(alias);
+        return actionOptions != null && actionOptions.heavy();
+    }
+}
@@ -47,6 +47,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"copyDirectory", "copyDir"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean copyDirectory(final String oldDirectory, final String newDirectory) {
         try {
             FileUtils.copyDirectory(new File(oldDirectory), new File(newDirectory));
@@ -65,6 +67,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"copyFile"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean copyFile(final String oldFile, final String newFile) {
         try {
             FileUtils.copyFile(new File(oldFile), new File(newFile));
@@ -82,6 +86,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"createDirectory", "createDir"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean createDirectory(final String directory) {
         try {
             FileUtils.forceMkdir(new File(directory));
@@ -99,6 +105,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"createFile"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean createFile(final String file) {
         final File file_ = new File(file);
         if (!file_.exists())
@@ -119,6 +127,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"deleteDirectory", "deleteDir"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean deleteDirectory(final String directory) {
         try {
             FileUtils.deleteDirectory(new File(directory));
@@ -136,6 +146,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"deleteFile"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean deleteFile(final String file) {
         FileUtils.deleteQuietly(new File(file));
         return true;
@@ -148,6 +160,7 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"getFileContent", "getContent"})
+    @ActionOptions(coalesce = true)
     public String getFileContent(final String file) {
         try {
             return FileUtils.readFileToString(new File(file), "UTF-8");
@@ -164,6 +177,7 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"getFileInformations", "fileInformations", "informations"})
+    @ActionOptions(coalesce = true)
     public TreeMap<String, Object> getFileInformations(final String file) {
         final TreeMap<String, Object> fileInformations = new TreeMap<String, Object>();
         final File file_ = new File(file);
@@ -191,6 +205,7 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"listDirectories", "listDirs"})
+    @ActionOptions(cacheTtl = 2000L, cacheSize = 64, coalesce = true)
     public List<String> listDirectories(final String directory) {
         return Arrays.asList(new File(directory).list(DirectoryFileFilter.INSTANCE));
     }
@@ -202,6 +217,7 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"listFiles"})
+    @ActionOptions(cacheTtl = 2000L, cacheSize = 64, coalesce = true)
     public List<String> listFiles(final String directory) {
         return Arrays.asList(new File(directory).list(FileFileFilter.FILE));
     }
@@ -213,6 +229,7 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"listFilesAndDirectories", "listFilesDirs"})
+    @ActionOptions(cacheTtl = 2000L, cacheSize = 64, coalesce = true)
     public List<String> listFilesAndDirectories(final String directory) {
         return Arrays.asList(new File(directory).list(TrueFileFilter.INSTANCE));
     }
@@ -225,6 +242,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"sendFile", "fileSend"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean sendFile(final String url, final String file) {
         FileOutputStream fileOutputStream = null;
         ReadableByteChannel readableByteChannel = null;
@@ -266,6 +285,8 @@ public class FileActions implements ActionHandler {
      */
     @Action(
             aliases = {"setFileContent", "setContent"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public boolean setFileContent(final String file, final String content) {
         try {
             FileUtils.write(new File(file), content, "UTF-8");
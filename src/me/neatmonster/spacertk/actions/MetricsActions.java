@@ -0,0 +1,76 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.actions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.neatmonster.spacemodule.api.Action;
+import me.neatmonster.spacemodule.api.ActionHandler;
+import me.neatmonster.spacertk.SpaceRTK;
+
+/**
+ * Actions handler for any Metrics-related actions
+ */
+public class MetricsActions implements ActionHandler {
+
+    /**
+     * Gets the metrics of the panel listener and of every action called by the panel since the last reset.
+     * Latencies are in microseconds.
+     * @return Connections of the panel listener, requests refused by its rate limits, calls, errors and latencies
+     *         of each action and of each method called on SpaceBukkit, hits and misses of each cached action and
+     *         commands written to the console
+     */
+    @Action(
+            aliases = {"getMetrics"})
+    public LinkedHashMap<String, Object> getMetrics() {
+        final SpaceRTK rtk = SpaceRTK.getInstance();
+        final LinkedHashMap<String, Object> metrics = new LinkedHashMap<String, Object>();
+        final Map<String, Integer> connections = new LinkedHashMap<String, Integer>();
+        connections.put("active", rtk.panelListener.getActiveConnections());
+        connections.put("queued", rtk.panelListener.getQueuedConnections());
+        metrics.put("connections", connections);
+        metrics.put("rejected", rtk.panelListener.getRateLimiter().toMap());
+        metrics.put("actions", rtk.actionMetrics.toMap());
+        metrics.put("plugin", rtk.pluginMetrics.toMap());
+        metrics.put("console", rtk.consoleWriter.toMap());
+        metrics.put("cache", rtk.resultCache.toMap());
+        return metrics;
+    }
+
+    /**
+     * Gets the health of SpaceBukkit, as seen by the periodic pings.
+     * Times are in milliseconds since the epoch, 0 if it never happened; latencies are in microseconds.
+     * @return If SpaceBukkit is up, last success and failure, last error, consecutive failures, latency of the last
+     *         ping and its 50th and 99th percentiles over the last hour, and milliseconds before the next ping
+     */
+    @Action(
+            aliases = {"getPluginHealth", "pluginHealth"})
+    public Map<String, Object> getPluginHealth() {
+        return SpaceRTK.getInstance().getPingListener().getHealth();
+    }
+
+    /**
+     * Forgets the metrics recorded so far
+     * @return If successful
+     */
+    @Action(
+            aliases = {"resetMetrics"})
+    public boolean resetMetrics() {
+        SpaceRTK.getInstance().actionMetrics.reset();
+        SpaceRTK.getInstance().pluginMetrics.reset();
+        return true;
+    }
+}
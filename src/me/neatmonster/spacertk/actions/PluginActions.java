@@ -61,6 +61,7 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"checkForUpdates", "pluginCheckUpdates"})
+    @ActionOptions(coalesce = true, heavy = true)
     public String checkForUpdates(final String pluginName) {
         try {
             final SBPlugin plugin = pluginsManager.getPlugin(pluginName);
@@ -92,6 +93,7 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"disable", "pluginDisable"})
+    @ActionOptions(parallel = false)
     public boolean disable(final String pluginName) {
         final File pluginFile = pluginsManager.getPluginFile(pluginName);
         if (pluginFile == null)
@@ -99,12 +101,10 @@ public class PluginActions implements ActionHandler {
         final boolean wasRunning = RemoteToolkit.isRunning();
         if (wasRunning)
             RemoteToolkit.hold();
-        while (RemoteToolkit.isRunning())
-            try {
-                Thread.sleep(1000);
-            } catch (final InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (!RemoteToolkit.awaitStop()) {
+            RemoteToolkit.unhold();
+            return false;
+        }
         final boolean result = pluginFile.renameTo(new File(pluginFile.getPath() + ".DISABLED"));
         if (wasRunning)
             RemoteToolkit.unhold();
@@ -118,6 +118,7 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"enable", "pluginEnable"})
+    @ActionOptions(parallel = false)
     public boolean enable(final String pluginName) {
         final File pluginFile = pluginsManager.getPluginFile(pluginName);
         if (pluginFile == null)
@@ -135,6 +136,7 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"informations", "pluginInformations"})
+    @ActionOptions(coalesce = true)
     public LinkedHashMap<String, Object> informations(final String pluginName) {
         final SBPlugin plugin = pluginsManager.getPlugin(pluginName);
         if (plugin != null) {
@@ -167,6 +169,8 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"install", "pluginInstall"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public String install(final String pluginName) {
         final SBPlugin plugin = pluginsManager.getPlugin(pluginName);
         if (plugin == null)
@@ -197,6 +201,8 @@ public class PluginActions implements ActionHandler {
      */
     @Action(
             aliases = {"installByUrl", "pluginInstallByUrl"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public String installByUrl(final String url, final String file) {
         new FileActions().sendFile(url, "plugins" + File.separator + file);
         final File file_ = new File("plugins", file);
@@ -217,12 +223,15 @@ public class PluginActions implements ActionHandler {
      * Removes a plugin from the server
      * FILENOTFOUND - The file was not found
      * SUCCESS - The removal was successful
+     * TIMEOUT - The server did not stop in time, nothing was removed
      * @param pluginName Plugin to remove
      * @param removeDirectory Directory to remove from
      * @return Result
      */
     @Action(
             aliases = {"remove", "pluginRemove"})
+    @ActionOptions(parallel = false,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public String remove(final String pluginName, final Boolean removeDirectory) {
         final File pluginFile = pluginsManager.getPluginFile(pluginName);
         if (pluginFile == null)
@@ -230,12 +239,10 @@ public class PluginActions implements ActionHandler {
         final boolean wasRunning = RemoteToolkit.isRunning();
         if (wasRunning) {
             RemoteToolkit.hold();
-            while (RemoteToolkit.isRunning())
-                try {
-                    Thread.sleep(1000);
-                } catch (final InterruptedException e) {
-                    e.printStackTrace();
-                }
+            if (!RemoteToolkit.awaitStop()) {
+                RemoteToolkit.unhold();
+                return "TIMEOUT";
+            }
         }
         pluginFile.delete();
         final File pluginDirectory = new File("plugins" + File.separator + pluginName);
@@ -257,12 +264,15 @@ public class PluginActions implements ActionHandler {
      * UNKNOWN,NEWVERSION=*** - Unable to find the version, the plugin's newest version is ***
      * FILENOTFOUND - The file could not be found
      * SUCCESS - The plugin was updated successfully
+     * TIMEOUT - The server did not stop in time, nothing was updated
      * @param pluginName Plugin to update
      * @param override Only extract the JAR
      * @return Result
      */
     @Action(
             aliases = {"update", "pluginUpdate"})
+    @ActionOptions(parallel = false, heavy = true,
+            invalidates = {"listDirectories", "listFiles", "listFilesAndDirectories", "getAllWorlds"})
     public String update(final String pluginName, final Boolean override) {
         final String result = checkForUpdates(pluginName);
         if (!result.startsWith("OUTDATED") && !result.startsWith("UNKNOWN"))
@@ -272,12 +282,10 @@ public class PluginActions implements ActionHandler {
         final boolean wasRunning = RemoteToolkit.isRunning();
         if (wasRunning) {
             RemoteToolkit.hold();
-            while (RemoteToolkit.isRunning())
-                try {
-                    Thread.sleep(1000);
-                } catch (final InterruptedException e) {
-                    e.printStackTrace();
-                }
+            if (!RemoteToolkit.awaitStop()) {
+                RemoteToolkit.unhold();
+                return "TIMEOUT";
+            }
         }
         pluginFile.delete();
         new FileActions().sendFile(plugin.getLatestVersion().link,
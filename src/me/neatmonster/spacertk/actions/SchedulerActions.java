@@ -41,6 +41,7 @@ public class SchedulerActions implements ActionHandler {
      */
     @Action(
             aliases = {"addJob"})
+    @ActionOptions(parallel = false)
     public boolean addJob(final String jobName, final String actionName, final Object[] actionArguments,
             final String timeType, final String timeArgument) {
         if (!Scheduler.getJobs().containsKey(jobName)) {
@@ -65,6 +66,7 @@ public class SchedulerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getJobs"})
+    @ActionOptions(coalesce = true)
     public LinkedHashMap<String, LinkedList<Object>> getJobs() {
         final LinkedHashMap<String, LinkedList<Object>> jobs = new LinkedHashMap<String, LinkedList<Object>>();
         for (final String jobName : Scheduler.getJobs().keySet()) {
@@ -86,6 +88,7 @@ public class SchedulerActions implements ActionHandler {
      */
     @Action(
             aliases = {"removeJob"})
+    @ActionOptions(parallel = false)
     public boolean removeJob(final String jobName) {
         Scheduler.removeJob(jobName);
         return true;
@@ -98,6 +101,7 @@ public class SchedulerActions implements ActionHandler {
      */
     @Action(
             aliases = {"runJob"})
+    @ActionOptions(parallel = false)
     public Object runJob(final String jobName) {
         if (Scheduler.getJobs().containsKey(jobName)) {
             Scheduler.getJobs().get(jobName).run();
@@ -19,10 +19,11 @@ import java.io.IOException;
 import java.net.URI;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import me.hwei.mctool.MapAutoTrim;
 import me.neatmonster.spacemodule.SpaceModule;
@@ -30,7 +31,9 @@ import me.neatmonster.spacemodule.api.Action;
 import me.neatmonster.spacemodule.api.ActionHandler;
 import me.neatmonster.spacertk.RemoteToolkit;
 import me.neatmonster.spacertk.SpaceRTK;
+import me.neatmonster.spacertk.TaskManager;
 import me.neatmonster.spacertk.utilities.backup.BackupManager;
+import me.neatmonster.spacertk.utilities.backup.BackupStore;
 import me.neatmonster.spacertk.utilities.Utilities;
 import me.neatmonster.spacertk.utilities.WorldFileFilter;
 
@@ -42,9 +45,11 @@ import org.json.simple.JSONValue;
  * Actions handler for any Server-related actions
  */
 public class ServerActions implements ActionHandler {
+    private static final long MAX_POLL_TIMEOUT = 30000L;
 
     /**
-     * Backups a directory
+     * Backups a directory, only saving the files changed since the last backup of the same name if incremental
+     * backups are enabled
      * @param name Name of the backup
      * @param directory Directory to backup
      * @param offlineBackup If the backup is offline
@@ -52,7 +57,34 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"backup", "backupDirectory", "backupDir"})
+    @ActionOptions(heavy = true)
     public String backup(String name, String directory, boolean offlineBackup) {
+        return queueBackup(name, directory, offlineBackup, SpaceRTK.getInstance().backupIncremental);
+    }
+
+    /**
+     * Backups the files of a directory changed since the last backup of the same name
+     * @param name Name of the backup
+     * @param directory Directory to backup
+     * @param offlineBackup If the backup is offline
+     * @return The UID of the operation
+     */
+    @Action(
+            aliases = {"incrementalBackup", "backupIncremental", "backupChanges"})
+    @ActionOptions(heavy = true)
+    public String incrementalBackup(String name, String directory, boolean offlineBackup) {
+        return queueBackup(name, directory, offlineBackup, true);
+    }
+
+    /**
+     * Backups a directory
+     * @param name Name of the backup
+     * @param directory Directory to backup
+     * @param offlineBackup If the backup is offline
+     * @param incremental If only the files changed since the last backup of the same name should be saved
+     * @return The UID of the operation
+     */
+    private String queueBackup(String name, String directory, boolean offlineBackup, boolean incremental) {
         BackupManager bManager = SpaceRTK.getInstance().getBackupManager();
 
         DateFormat dateFormat = new SimpleDateFormat("MM_dd_yyyy_HH_mm");
@@ -64,12 +96,12 @@ public class ServerActions implements ActionHandler {
         try {
             if(directory.equals("*")) {
                 File oldDirectory = new File(System.getProperty("user.dir"));
-                File zipFile = new File(backupDir + File.separator + name + "_" + dateFormat.format(date)+ ".zip");
+                File zipFile = getBackupFile(backupDir, name + "_" + dateFormat.format(date));
 
                 if (!SpaceRTK.getInstance().worldContainer.equals(new File("."))) {
-                    return bManager.performBackup(offlineBackup, false, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory,SpaceRTK.getInstance().worldContainer);
+                    return bManager.performBackup(offlineBackup, false, incremental, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory,SpaceRTK.getInstance().worldContainer);
                 } else {
-                    return bManager.performBackup(offlineBackup, false, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory);
+                    return bManager.performBackup(offlineBackup, false, incremental, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory);
                 }
 
             } else {
@@ -79,9 +111,9 @@ public class ServerActions implements ActionHandler {
                 if(!dirPath.startsWith(SpaceRTK.baseDir.getCanonicalPath()))
                     return null;
 
-                File zipFile = new File(backupDir + File.separator + name + "_" + dateFormat.format(date)+ ".zip");
+                File zipFile = getBackupFile(backupDir, name + "_" + dateFormat.format(date));
 
-                return bManager.performBackup(offlineBackup, false, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory);
+                return bManager.performBackup(offlineBackup, false, incremental, name, zipFile, new URI[]{backupDir.toURI()}, oldDirectory);
             }
         } catch(IOException e) {
             e.printStackTrace();
@@ -90,12 +122,40 @@ public class ServerActions implements ActionHandler {
 
     }
 
+    /**
+     * Gets the file a backup is saved to, depending on the configured backup target: an archive, or a manifest in
+     * the deduplicating backup store
+     * @param backupDir Backup directory
+     * @param fileName Name of the file, without extension
+     * @return The file to save the backup to
+     */
+    private File getBackupFile(File backupDir, String fileName) {
+        if ("store".equalsIgnoreCase(SpaceRTK.getInstance().backupTarget)) {
+            File manifests = new File(backupDir, BackupStore.STORE_DIRECTORY + File.separator + BackupStore.MANIFEST_DIRECTORY);
+            manifests.mkdirs();
+            return new File(manifests, fileName + BackupStore.MANIFEST_EXTENSION);
+        }
+        return new File(backupDir + File.separator + fileName + ".zip");
+    }
+
+    /**
+     * Gets the logical and physical sizes of the backups kept in the backup store
+     * @return Number of backups, their total logical and physical sizes, and the sizes of each backup by UID
+     */
+    @Action(
+            aliases = {"getBackupStoreInfo", "backupStoreInfo"})
+    @ActionOptions(cacheTtl = 10000L, cacheSize = 1, coalesce = true)
+    public Map<String, Object> getBackupStoreInfo() {
+        return SpaceRTK.getInstance().getBackupManager().getStoreInfo();
+    }
+
     /**
      * Lists metadata of all backups.
      * @return A list of backup metadata.
      */
     @Action(
             aliases = {"getBackups", "listBackups", "listBackupInfo"})
+    @ActionOptions(cacheTtl = 10000L, cacheSize = 1, coalesce = true)
     public List<List<String>> getBackups() {
         return SpaceRTK.getInstance().getBackupManager().listBackupInfo();
     }
@@ -106,6 +166,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getOperations", "listOperations", "listOperationInfo"})
+    @ActionOptions(coalesce = true)
     public List<List<String>> getOperations() {
         return SpaceRTK.getInstance().getBackupManager().listOperationInfo();
     }
@@ -116,20 +177,36 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getOperationInfo", "operationInfo"})
+    @ActionOptions(coalesce = true)
     public List<String> getOperationInfo(String uid) {
-        BackupManager bManager = SpaceRTK.getInstance().getBackupManager();
+        return SpaceRTK.getInstance().getBackupManager().getOperationInfo(uid);
+    }
 
-        List<String> info = new ArrayList<String>(9);
-        info.add(bManager.getOperationName(uid));
-        info.add(bManager.getOperationFileName(uid));
-        info.add(""+bManager.getOperationStartTime(uid));
-        info.add(""+bManager.getOperationProgress(uid).replaceAll(",", "."));
-        info.add(bManager.getOperationStatus(uid));
-        info.add(bManager.getOperationFile(uid));
-        info.add(""+bManager.getOperationDataCopied(uid));
-        info.add(""+bManager.getOperationSize(uid));
-
-        return info;
+    /**
+     * Waits for the state of an operation to change, for long-polling clients
+     * @param uid UID of the operation
+     * @param seen Number of updates of the operation already seen, -1 to get its state at once
+     * @param timeout Maximum time to wait, in milliseconds, at most 30 seconds
+     * @return Number of updates of the operation, if it is done and information about it, null if there is no such
+     *         operation
+     */
+    @Action(
+            aliases = {"awaitOperationInfo", "pollOperationInfo"})
+    public LinkedHashMap<String, Object> awaitOperationInfo(String uid, Long seen, Long timeout) {
+        try {
+            BackupManager.OperationUpdate update = SpaceRTK.getInstance().getBackupManager().awaitOperationUpdate(uid,
+                    seen == null ? -1L : seen, timeout == null ? 0L : Math.min(Math.max(timeout, 0L), MAX_POLL_TIMEOUT));
+            if (update == null)
+                return null;
+            LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("updates", update.updates);
+            result.put("done", update.done);
+            result.put("info", update.info);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 
     /**
@@ -141,6 +218,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"restore", "restoreBackup"})
+    @ActionOptions(parallel = false, heavy = true)
     public void restore(String uid, boolean clearDest, boolean offline) {
         SpaceRTK.getInstance().getBackupManager().performRestore(offline, clearDest, uid, ".");
     }
@@ -151,6 +229,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"operationError", "getOperationError"})
+    @ActionOptions(coalesce = true)
     public String getOperationError(String uid) {
         return SpaceRTK.getInstance().getBackupManager().getError(uid);
     }
@@ -161,6 +240,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"isOperationRunning", "operationRunning"})
+    @ActionOptions(coalesce = true)
     public boolean isOperationRunning(String uid) {
         return SpaceRTK.getInstance().getBackupManager().isOperationRunning(uid);
     }
@@ -171,6 +251,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getRunningOperation", "runningOperation"})
+    @ActionOptions(coalesce = true)
     public String getRunningOperation() {
         return SpaceRTK.getInstance().getBackupManager().getOperationRunning();
     }
@@ -181,6 +262,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getRunningOperationInfo", "runningOperationInfo"})
+    @ActionOptions(coalesce = true)
     public List<String> getRunningOperationInfo() {
         BackupManager bManager = SpaceRTK.getInstance().getBackupManager();
         return getOperationInfo(bManager.getOperationRunning());
@@ -195,6 +277,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"consoleCommand", "serverCommand", "command"})
+    @ActionOptions(parallel = false)
     public boolean consoleCommand(final String command) {
         RemoteToolkit.consoleCommand(command);
         return true;
@@ -207,6 +290,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"externalCommand"})
+    @ActionOptions(parallel = false)
     public boolean externalCommand(final String command) {
         RemoteToolkit.externalCommand(command);
         return true;
@@ -218,6 +302,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"forceRestart", "forceRestartServer"})
+    @ActionOptions(parallel = false)
     public boolean forceRestart() {
         RemoteToolkit.forceRestart();
         return true;
@@ -229,6 +314,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"forceStop", "forceStopServer"})
+    @ActionOptions(parallel = false)
     public boolean forceStop() {
         RemoteToolkit.forceStop();
         return true;
@@ -240,6 +326,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getAllWorlds", "allWorlds"})
+    @ActionOptions(cacheTtl = 5000L, coalesce = true)
     public List<String> getAllWorlds() {
         return Arrays.asList(SpaceRTK.getInstance().worldContainer.list(WorldFileFilter.INSTANCE));
     }
@@ -250,6 +337,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getSpaceModuleVersion", "SpaceModuleVersion", "SpaceModule"})
+    @ActionOptions(cacheTtl = 60000L, cacheSize = 1)
     public String getSpaceModuleVersion() {
         try {
             SpaceModule.class.getMethod("getVersion");
@@ -266,6 +354,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"getVersion", "version"})
+    @ActionOptions(cacheTtl = 60000L, cacheSize = 1)
     public String getSpaceRTKVersion() {
         try {
             SpaceModule.class.getMethod("getModuleVersion");
@@ -282,6 +371,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"hold", "stop", "stopServer"})
+    @ActionOptions(parallel = false)
     public boolean hold() {
         RemoteToolkit.hold();
         return true;
@@ -294,6 +384,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"rescheduleRestart", "rescheduleServerRestart"})
+    @ActionOptions(parallel = false)
     public boolean rescheduleRestart(final String date) {
         RemoteToolkit.rescheduleRestart(date);
         return true;
@@ -306,6 +397,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"restart", "restartServer"})
+    @ActionOptions(parallel = false)
     public boolean restart(final Boolean save) {
         RemoteToolkit.restart(save);
         return true;
@@ -318,6 +410,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"restartIfEmpty", "restartServerIfEmpty"})
+    @ActionOptions(parallel = false)
     public boolean restartIfEmpty(final Boolean save) {
         final JSONArray players = (JSONArray) JSONValue.parse(Utilities.sendMethod("getPlayers", "[]"));
         if (players == null || players.size() == 0)
@@ -331,6 +424,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"rollOverLog", "rollOver"})
+    @ActionOptions(parallel = false)
     public boolean rollOver() {
         File oldLog = null;
         for (File file : new File(".").listFiles()) {
@@ -368,16 +462,18 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"runMapTrimmer", "mapTrimmer"})
+    @ActionOptions(parallel = false, heavy = true)
     public boolean runMapAutoTrim(final String worldName, final String dilation, final String preservedBlocks) {
         final boolean wasRunning = running();
-        if (wasRunning)
+        if (wasRunning) {
+            TaskManager.reportProgress("Stopping the server", 0.0);
             hold();
-        while (running())
-            try {
-                Thread.sleep(1000);
-            } catch (final InterruptedException e) {
-                e.printStackTrace();
-            };
+        }
+        if (!RemoteToolkit.awaitStop()) {
+            unhold();
+            return false;
+        }
+        TaskManager.reportProgress("Trimming " + worldName, 0.1);
         int size;
         if (dilation.equals("") && preservedBlocks.equals(""))
             size = 2;
@@ -397,8 +493,10 @@ public class ServerActions implements ActionHandler {
             matArgs[5] = preservedBlocks;
         }
         MapAutoTrim.main(matArgs);
-        if (wasRunning)
+        if (wasRunning) {
+            TaskManager.reportProgress("Starting the server", 0.9);
             unhold();
+        }
         return true;
     }
 
@@ -408,6 +506,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"isRunning", "isServerRunning", "running"})
+    @ActionOptions(coalesce = true)
     public boolean running() {
         return RemoteToolkit.isRunning();
     }
@@ -418,6 +517,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"save", "saveServer"})
+    @ActionOptions(parallel = false)
     public boolean save() {
         RemoteToolkit.save();
         return true;
@@ -429,6 +529,7 @@ public class ServerActions implements ActionHandler {
      */
     @Action(
             aliases = {"unhold", "start", "startServer"})
+    @ActionOptions(parallel = false)
     public boolean unhold() {
         RemoteToolkit.unhold();
         return true;
@@ -438,6 +539,7 @@ public class ServerActions implements ActionHandler {
      * Gets the server's current Java version
      */
     @Action(aliases = {"getJavaVersion", "javaversion", "java"})
+    @ActionOptions(cacheTtl = 60000L, cacheSize = 1)
     public String getJavaVersion() {
         return System.getProperty("java.version");
     }
@@ -0,0 +1,63 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.actions;
+
+import java.util.List;
+import java.util.Map;
+
+import me.neatmonster.spacemodule.api.Action;
+import me.neatmonster.spacemodule.api.ActionHandler;
+import me.neatmonster.spacertk.SpaceRTK;
+
+/**
+ * Actions handler for the actions called in the background.
+ * An action is run in the background by adding async=true to its call, which then answers with a task ID.
+ */
+public class TaskActions implements ActionHandler {
+
+    /**
+     * Gets the state, progress and result of a task.
+     * The state is one of QUEUED, RUNNING, DONE, FAILED or CANCELLED; the progress is between 0 and 1, -1 if the
+     * action does not report it.
+     * @param id ID of the task
+     * @return Informations of the task, null if it is unknown or was forgotten
+     */
+    @Action(
+            aliases = {"getTask", "taskInfo"})
+    public Map<String, Object> getTask(final String id) {
+        return SpaceRTK.getInstance().taskManager.getInfo(id);
+    }
+
+    /**
+     * Gets the state and progress of every task recently submitted
+     * @return Informations of the tasks, without their results
+     */
+    @Action(
+            aliases = {"getTasks", "listTasks"})
+    public List<Map<String, Object>> getTasks() {
+        return SpaceRTK.getInstance().taskManager.getTasks();
+    }
+
+    /**
+     * Cancels a task, interrupting it if it is running
+     * @param id ID of the task
+     * @return If the task is now cancelled
+     */
+    @Action(
+            aliases = {"cancelTask"})
+    public boolean cancelTask(final String id) {
+        return SpaceRTK.getInstance().taskManager.cancel(id);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.event;
+
+
+import com.drdanick.rtoolkit.event.ToolkitEvent;
+
+/**
+ * Defines an event that is fired when the server is seen starting or stopping.
+ */
+public class ServerStateEvent extends ToolkitEvent {
+    private boolean running;
+    private long time;
+
+    /**
+     * Creates a new ServerStateEvent
+     * @param running If the server is now running
+     * @param time Time the change was seen at
+     */
+    public ServerStateEvent(boolean running, long time) {
+        this.running = running;
+        this.time = time;
+    }
+
+    /**
+     * Check if the server is now running.
+     * @return true if the server started, false if it stopped.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the time the change was seen at.
+     * @return the time of the change, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the {@link ActionStats} of every action called by the panel, or of every method called on SpaceBukkit
+ */
+public class ActionMetrics {
+    private static final double[] PERCENTILES      = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final String[] QUANTILES        = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final ConcurrentMap<String, ActionStats> actions = new ConcurrentHashMap<String, ActionStats>();
+    private final String                             prefix;
+
+    /**
+     * Creates the metrics of the actions called by the panel
+     */
+    public ActionMetrics() {
+        this("spacertk_action");
+    }
+
+    /**
+     * Creates new metrics
+     * @param prefix Prefix of the names of the metrics in the text exposition format
+     */
+    public ActionMetrics(final String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Records a call of an action
+     * @param action Name the action was called with
+     * @param micros Time the call took, in microseconds
+     * @param failed If the call threw an exception
+     */
+    public void record(final String action, final long micros, final boolean failed) {
+        statsOf(action).record(micros, failed);
+    }
+
+    /**
+     * Records a call of an action that shared the execution of an identical call already running
+     * @param action Name the action was called with
+     */
+    public void recordCoalesced(final String action) {
+        statsOf(action).recordCoalesced();
+    }
+
+    /**
+     * Gets the statistics of an action
+     * @param action Name the action was called with
+     * @return Statistics of the action, null if it was never called
+     */
+    public ActionStats get(final String action) {
+        return actions.get(action);
+    }
+
+    /**
+     * Forgets every recorded call
+     */
+    public void reset() {
+        for (final ActionStats stats : actions.values())
+            stats.reset();
+    }
+
+    private ActionStats statsOf(final String action) {
+        ActionStats stats = actions.get(action);
+        if (stats == null) {
+            final ActionStats created = new ActionStats();
+            stats = actions.putIfAbsent(action, created);
+            if (stats == null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the statistics of every action, sorted by name, with latencies in microseconds
+     * @return Map of the names of the actions to their calls, errors, coalesced calls, mean, percentiles and
+     *         maximum latency
+     */
+    public Map<String, Map<String, Long>> toMap() {
+        final Map<String, Map<String, Long>> result = new LinkedHashMap<String, Map<String, Long>>();
+        for (final Map.Entry<String, ActionStats> entry : new TreeMap<String, ActionStats>(actions).entrySet()) {
+            final ActionStats stats = entry.getValue();
+            final LatencyHistogram latency = stats.getLatency();
+            final Map<String, Long> values = new LinkedHashMap<String, Long>();
+            values.put("calls", stats.getCalls());
+            values.put("errors", stats.getErrors());
+            values.put("coalesced", stats.getCoalesced());
+            values.put("mean", latency.getMean());
+            final long[] percentiles = latency.getPercentiles(PERCENTILES);
+            for (int i = 0; i < percentiles.length; i++)
+                values.put(PERCENTILE_NAMES[i], percentiles[i]);
+            values.put("max", latency.getMax());
+            result.put(entry.getKey(), values);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the statistics of every action in the plain text exposition format read by metrics scrapers
+     * @param out Builder to write to
+     */
+    public void writeText(final StringBuilder out) {
+        final Map<String, ActionStats> sorted = new TreeMap<String, ActionStats>(actions);
+        out.append("# TYPE ").append(prefix).append("_calls_total counter\n");
+        for (final Map.Entry<String, ActionStats> entry : sorted.entrySet())
+            sample(out, prefix + "_calls_total", entry.getKey(), null, entry.getValue().getCalls());
+        out.append("# TYPE ").append(prefix).append("_errors_total counter\n");
+        for (final Map.Entry<String, ActionStats> entry : sorted.entrySet())
+            sample(out, prefix + "_errors_total", entry.getKey(), null, entry.getValue().getErrors());
+        out.append("# TYPE ").append(prefix).append("_coalesced_total counter\n");
+        for (final Map.Entry<String, ActionStats> entry : sorted.entrySet())
+            sample(out, prefix + "_coalesced_total", entry.getKey(), null, entry.getValue().getCoalesced());
+        out.append("# TYPE ").append(prefix).append("_latency_microseconds summary\n");
+        for (final Map.Entry<String, ActionStats> entry : sorted.entrySet()) {
+            final LatencyHistogram latency = entry.getValue().getLatency();
+            final long[] percentiles = latency.getPercentiles(PERCENTILES);
+            for (int i = 0; i < percentiles.length; i++)
+                sample(out, prefix + "_latency_microseconds", entry.getKey(), QUANTILES[i], percentiles[i]);
+            sample(out, prefix + "_latency_microseconds_sum", entry.getKey(), null, latency.getSum());
+            sample(out, prefix + "_latency_microseconds_count", entry.getKey(), null, latency.getCount());
+        }
+    }
+
+    private static void sample(final StringBuilder out, final String name, final String action,
+            final String quantile, final long value) {
+        out.append(name).append("{action=\"").append(action.replace("\\", "\\\\").replace("\"", "\\\""))
+                .append('"');
+        if (quantile != null)
+            out.append(",quantile=\"").append(quantile).append('"');
+        out.append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls, errors and latencies of a single action
+ */
+public class ActionStats {
+    private final AtomicLong       calls     = new AtomicLong();
+    private final AtomicLong       errors    = new AtomicLong();
+    private final AtomicLong       coalesced = new AtomicLong();
+    private final LatencyHistogram latency   = new LatencyHistogram();
+
+    /**
+     * Records a call of the action
+     * @param micros Time the call took, in microseconds
+     * @param failed If the call threw an exception
+     */
+    public void record(final long micros, final boolean failed) {
+        calls.incrementAndGet();
+        if (failed)
+            errors.incrementAndGet();
+        latency.record(micros);
+    }
+
+    /**
+     * Records a call of the action that shared the execution of an identical call already running
+     */
+    public void recordCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of calls of the action
+     * @return Number of calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Gets the number of calls of the action that threw an exception
+     * @return Number of failed calls
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Gets the number of calls of the action that shared the execution of an identical call
+     * @return Number of coalesced calls
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Gets the latencies of the calls, in microseconds
+     * @return Latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Forgets every recorded call
+     */
+    public void reset() {
+        calls.set(0L);
+        errors.set(0L);
+        coalesced.set(0L);
+        latency.reset();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in buckets of logarithmically growing width, like HdrHistogram does.
+ * Each power of two is split into 16 buckets, so a recorded value is known within about 6%.
+ * Recording is lock-free and may happen from any number of threads while the histogram is read.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS  = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE    = 40; //Values up to 2^40 microseconds, about 12 days
+    static final int         BUCKET_COUNT     = SUB_BUCKET_COUNT * (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      sum     = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    /**
+     * Records a value
+     * @param value Value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0L)
+            value = 0L;
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    /**
+     * Gets the number of recorded values
+     * @return Number of values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the sum of the recorded values
+     * @return Sum of the values
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Gets the largest recorded value
+     * @return Largest value, 0 if none was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the average of the recorded values
+     * @return Average value, 0 if none was recorded
+     */
+    public long getMean() {
+        final long recorded = count.get();
+        return recorded == 0L ? 0L : sum.get() / recorded;
+    }
+
+    /**
+     * Gets the values at several percentiles at once
+     * @param percentiles Percentiles to compute, between 0 and 100, in increasing order
+     * @return Upper bound of the bucket holding each percentile, never more than the largest recorded value
+     */
+    public long[] getPercentiles(final double... percentiles) {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        addTo(snapshot);
+        return percentilesOf(snapshot, max.get(), percentiles);
+    }
+
+    /**
+     * Adds the counts of every bucket to a snapshot, to merge several histograms
+     * @param snapshot Counts of the buckets, of {@link #BUCKET_COUNT} elements
+     */
+    void addTo(final long[] snapshot) {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            snapshot[i] += buckets.get(i);
+    }
+
+    /**
+     * Gets the values at several percentiles of a snapshot of the buckets
+     * @param snapshot Counts of the buckets
+     * @param largest Largest value recorded in the snapshot
+     * @param percentiles Percentiles to compute, between 0 and 100, in increasing order
+     * @return Upper bound of the bucket holding each percentile, never more than the largest value
+     */
+    static long[] percentilesOf(final long[] snapshot, final long largest, final double... percentiles) {
+        long total = 0L;
+        for (final long bucketCount : snapshot)
+            total += bucketCount;
+        final long[] values = new long[percentiles.length];
+        int bucket = 0;
+        long seen = snapshot[0];
+        for (int p = 0; p < percentiles.length; p++) {
+            if (total == 0L)
+                break;
+            final long rank = Math.max(1L, (long) Math.ceil(percentiles[p] / 100.0 * total));
+            while (seen < rank && bucket < BUCKET_COUNT - 1)
+                seen += snapshot[++bucket];
+            values[p] = Math.min(highestValueOf(bucket), largest);
+        }
+        return values;
+    }
+
+    /**
+     * Forgets every recorded value
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0L);
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKET_COUNT - 1;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT)
+            return bucket;
+        final int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        final int subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1L;
+    }
+}
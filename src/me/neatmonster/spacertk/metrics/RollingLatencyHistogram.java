@@ -0,0 +1,85 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.metrics;
+
+/**
+ * Records latencies over a sliding window of time, forgetting the values older than the window.
+ * The window is split into slices, each a {@link LatencyHistogram}; the oldest slice is emptied and reused when
+ * time moves past it, so the window slides by one slice at a time.
+ */
+public class RollingLatencyHistogram {
+    private final LatencyHistogram[] slices;
+    private final long[]             sliceIndexes;
+    private final long               sliceLength;
+
+    /**
+     * Creates a new rolling histogram
+     * @param window Milliseconds of values kept
+     * @param sliceCount Number of slices the window is split into
+     */
+    public RollingLatencyHistogram(final long window, final int sliceCount) {
+        slices = new LatencyHistogram[sliceCount];
+        sliceIndexes = new long[sliceCount];
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = new LatencyHistogram();
+            sliceIndexes[i] = -1L;
+        }
+        sliceLength = Math.max(1L, window / sliceCount);
+    }
+
+    /**
+     * Records a value
+     * @param value Value to record, negative values are recorded as 0
+     */
+    public synchronized void record(final long value) {
+        final long index = System.currentTimeMillis() / sliceLength;
+        final int slice = (int) (index % slices.length);
+        if (sliceIndexes[slice] != index) {
+            slices[slice].reset();
+            sliceIndexes[slice] = index;
+        }
+        slices[slice].record(value);
+    }
+
+    /**
+     * Gets the number of values recorded within the window
+     * @return Number of values
+     */
+    public synchronized long getCount() {
+        final long oldest = System.currentTimeMillis() / sliceLength - slices.length;
+        long count = 0L;
+        for (int i = 0; i < slices.length; i++)
+            if (sliceIndexes[i] > oldest)
+                count += slices[i].getCount();
+        return count;
+    }
+
+    /**
+     * Gets the values at several percentiles of the values recorded within the window
+     * @param percentiles Percentiles to compute, between 0 and 100, in increasing order
+     * @return Upper bound of the bucket holding each percentile, 0 if no value was recorded within the window
+     */
+    public synchronized long[] getPercentiles(final double... percentiles) {
+        final long oldest = System.currentTimeMillis() / sliceLength - slices.length;
+        final long[] snapshot = new long[LatencyHistogram.BUCKET_COUNT];
+        long largest = 0L;
+        for (int i = 0; i < slices.length; i++)
+            if (sliceIndexes[i] > oldest) {
+                slices[i].addTo(snapshot);
+                largest = Math.max(largest, slices[i].getMax());
+            }
+        return LatencyHistogram.percentilesOf(snapshot, largest, percentiles);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.utilities;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an HTTP/1.1 body using the chunked transfer encoding.
+ * Data is buffered and sent one chunk at a time; {@link #finish()} writes the terminating chunk
+ * without closing the underlying stream, so the connection can be reused.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    private static final int    DEFAULT_CHUNK_SIZE = 65536;
+    private static final byte[] CRLF               = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK         = {'0', '\r', '\n', '\r', '\n'};
+
+    private final OutputStream out;
+    private final byte[]       buffer;
+    private int                count    = 0;
+    private boolean            finished = false;
+
+    /**
+     * Creates a new chunked stream with chunks of 64 KB
+     * @param out Stream to write the chunks to
+     */
+    public ChunkedOutputStream(final OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new chunked stream
+     * @param out Stream to write the chunks to
+     * @param chunkSize Maximum size of a chunk, in bytes
+     */
+    public ChunkedOutputStream(final OutputStream out, final int chunkSize) {
+        this.out = out;
+        buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == buffer.length)
+            flushChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Chunked stream already finished");
+        if (count == 0 && len >= buffer.length) {
+            writeChunk(b, off, len); // Large writes go straight out without being copied.
+            return;
+        }
+        while (len > 0) {
+            final int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+            if (count == buffer.length)
+                flushChunk();
+        }
+    }
+
+    /**
+     * Sends the buffered data as a chunk and flushes the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    /**
+     * Sends the remaining data followed by the last chunk. The underlying stream is left open.
+     * @throws IOException If the data cannot be written
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        flushChunk();
+        out.write(LAST_CHUNK);
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Same as {@link #finish()}, the underlying stream is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void flushChunk() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeChunk(final byte[] b, final int off, final int len) throws IOException {
+        out.write(Integer.toHexString(len).getBytes("US-ASCII"));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+}
@@ -30,10 +30,11 @@ import java.util.StringTokenizer;
  * Implementation of an m-ary tree to represent a folder hierarchy.
  */
 public class FSTree implements Iterable<String>, Externalizable {
-    static final byte serialVersion = 1;
+    static final byte serialVersion = 2;
     private static final int BUILDER_SIZE = 128;
     private String name;
     private long size;
+    private long lastModified;
     private Map<String, FSTree> children;
     private FSTree parent;
 
@@ -78,20 +79,39 @@ public class FSTree implements Iterable<String>, Externalizable {
         children = new HashMap<String, FSTree>();
     }
 
+    /**
+     * Constructs an empty child node, to be filled by readExternal().
+     * @param parent parent of this node.
+     */
+    private FSTree(FSTree parent) {
+        this.parent = parent;
+        children = new HashMap<String, FSTree>();
+    }
+
     /**
      * Add a file to the tree relative to the file that this node represents
      * @param name the name of the file
      * @param size the size of the file
      */
     public void add(String name, long size) {
+        add(name, size, 0L);
+    }
+
+    /**
+     * Add a file to the tree relative to the file that this node represents
+     * @param name the name of the file
+     * @param size the size of the file
+     * @param lastModified the time the file was last modified, in milliseconds
+     */
+    public void add(String name, long size, long lastModified) {
         StringTokenizer tokenizer = new StringTokenizer(name, "\\/");
-        addRecurse(tokenizer, size);
+        addRecurse(tokenizer, size, lastModified);
     }
 
     /**
      * Recursive helper method for add()
      */
-    private void addRecurse(StringTokenizer tokenizer, long size){
+    private void addRecurse(StringTokenizer tokenizer, long size, long lastModified){
         this.size += size;
 
         if(tokenizer.hasMoreTokens()) {
@@ -103,9 +123,11 @@ public class FSTree implements Iterable<String>, Externalizable {
                     child = new FSTree(name, 0L, this);
                     children.put(new String(name.toCharArray()), child);
                 }
-                child.addRecurse(tokenizer, size);
+                child.addRecurse(tokenizer, size, lastModified);
             } else {
-                children.put(new String(name.toCharArray()), new FSTree(name, size, this));
+                FSTree leaf = new FSTree(name, size, this);
+                leaf.lastModified = lastModified;
+                children.put(new String(name.toCharArray()), leaf);
             }
 
         }
@@ -119,14 +141,13 @@ public class FSTree implements Iterable<String>, Externalizable {
     public long merge(FSTree tree) {
         long oldSize = size;
         for(FSTree child : tree.children.values()) {
-            if(!children.containsKey(child.name)) {
+            FSTree existing = children.get(child.name);
+            if(existing == null) {
                 children.put(new String(child.name.toCharArray()), child);
+                child.parent = this;
                 size += child.size;
-                return child.size;
-            } else {
-                long s = children.get(child.name).merge(child);
-                size += s;
-                return s;
+            } else if(!existing.children.isEmpty() && !child.children.isEmpty()) {
+                size += existing.merge(child);
             }
         }
         return size - oldSize;
@@ -229,6 +250,55 @@ public class FSTree implements Iterable<String>, Externalizable {
         return nodes;
     }
 
+    /**
+     * Enumerate the relative paths of the leaves in this tree that are not in a previous version of the tree,
+     * or whose size or modification time differ from it.
+     * @param previous previous version of this tree.
+     * @param changed list to store the enumeration in.
+     */
+    public List<String> enumerateChanged(FSTree previous, List<String> changed) {
+        if(changed == null)
+            changed = new LinkedList<String>();
+
+        if(!children.isEmpty())
+            changedRecurse(previous, changed, new StringBuilder(BUILDER_SIZE));
+        else if(name != null && isChanged(previous))
+            changed.add(name);
+
+        return changed;
+    }
+
+    /**
+     * Recursive helper method for enumerateChanged()
+     */
+    private void changedRecurse(FSTree previous, List<String> list, StringBuilder builder) {
+        int pos = builder.length();
+        if(name != null) {
+            if(pos > 0)
+                builder.append(File.separatorChar);
+            builder.append(name);
+        }
+
+        if(children.isEmpty()) {
+            if(isChanged(previous))
+                list.add(builder.toString());
+        } else {
+            for(FSTree child : children.values())
+                child.changedRecurse(previous == null ? null : previous.children.get(child.name), list, builder);
+        }
+
+        builder.setLength(pos);
+    }
+
+    /**
+     * Check if this leaf differs from its previous version. Leaves without a known modification time are
+     * always considered changed.
+     */
+    private boolean isChanged(FSTree previous) {
+        return previous == null || !previous.children.isEmpty() || previous.size != size
+                || lastModified == 0L || previous.lastModified != lastModified;
+    }
+
     /**
      * Recursive helper method for the enumeration methods.
      */
@@ -262,6 +332,14 @@ public class FSTree implements Iterable<String>, Externalizable {
         return size;
     }
 
+    /**
+     * Get the time the file represented by this FSTree was last modified, 0 if it is a folder or unknown.
+     * @return The time the file was last modified, in milliseconds.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
     /**
      * Get the name of the root file in the tree.
      * @return the name of the root file in the tree.
@@ -289,39 +367,67 @@ public class FSTree implements Iterable<String>, Externalizable {
     @Override
     public void writeExternal(ObjectOutput oo) throws IOException {
         /*
-         * Serialization format:
+         * Serialization format (version 2):
          * byte 1: serial version
-         * byte 2: name length (l)
-         * byte 3 to l+3: name
-         * byte l+4 to l+67: size of node
-         * byte l+68: children count
-         * byte l+69 to n: children (recursive)
+         * then for each node, depth first:
+         *   boolean: true if the node has a name
+         *   UTF string: name, if present
+         *   long: size of node
+         *   long: last modification time of node
+         *   int: children count
+         *   children (recursive)
          */
-        if(name != null && name.length() > Short.MAX_VALUE)
-            throw new IOException("Name of node exceeds maximum allowed size of "+Short.MAX_VALUE);
-        if(children.size() > Short.MAX_VALUE)
-            throw new IOException("Number of subfolders in "+name+" exceeds maximum allowed number: "+Short.MAX_VALUE);
-
         oo.writeByte(serialVersion);
-        if(name != null) {
-            oo.writeByte(name.length());
-            oo.writeBytes(name);
-        } else {
-            oo.writeByte(1);
-            oo.writeByte(0);
-        }
+        writeNode(oo);
+    }
+
+    /**
+     * Recursive helper method for writeExternal()
+     */
+    private void writeNode(ObjectOutput oo) throws IOException {
+        oo.writeBoolean(name != null);
+        if(name != null)
+            oo.writeUTF(name);
         oo.writeLong(size);
-        oo.writeByte(children.size());
+        oo.writeLong(lastModified);
+        oo.writeInt(children.size());
         for(FSTree child : children.values()) {
-            child.writeExternal(oo);
+            child.writeNode(oo);
         }
     }
 
     @Override
     public void readExternal(ObjectInput oi) throws IOException, ClassNotFoundException {
-        if(oi.readByte() != serialVersion)
+        byte version = oi.readByte();
+        if(version == serialVersion)
+            readNode(oi);
+        else if(version == 1)
+            readNodeV1(oi);
+        else
             throw new IOException("Serial version mismatch");
+    }
 
+    /**
+     * Recursive helper method for readExternal()
+     */
+    private void readNode(ObjectInput oi) throws IOException {
+        name = oi.readBoolean() ? oi.readUTF() : null;
+        size = oi.readLong();
+        lastModified = oi.readLong();
+
+        int childCount = oi.readInt();
+        for(int i = 0; i < childCount; i++) {
+            FSTree child = new FSTree(this);
+            child.readNode(oi);
+            children.put(child.getName(), child);
+        }
+    }
+
+    /**
+     * Reads a node written by version 1, which prefixed every node with the serial version and had no
+     * modification times.
+     */
+    private void readNodeV1(ObjectInput oi) throws IOException {
         int nameLength = (short)oi.readByte() & 0xFF; //Remove possible negative sign extension from the cast
         byte[] name = new byte[nameLength];
 
@@ -330,14 +436,16 @@ public class FSTree implements Iterable<String>, Externalizable {
         if(nameLength == 1 && name[0] == 0)
             this.name = null;
         else
-            this.name = new String(name);
+            this.name = new String(name, "ISO-8859-1");
 
         size = oi.readLong();
 
         int childCount = (short)oi.readByte() & 0xFF;
         for(int i = 0; i < childCount; i++) {
-            FSTree child = new FSTree(null, 0L, this);
-            child.readExternal(oi);
+            if(oi.readByte() != 1)
+                throw new IOException("Serial version mismatch");
+            FSTree child = new FSTree(this);
+            child.readNodeV1(oi);
             children.put(child.getName(), child);
         }
     }
@@ -0,0 +1,160 @@
+/*
+ * This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative
+ * Common organization, either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA)
+ * license along with this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.utilities;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+/**
+ * Serializes values to JSON exactly like {@link org.json.simple.JSONValue#writeJSONString(Object, Writer)}, but
+ * writes strings to the writer as they are escaped instead of building an escaped copy of each of them first.
+ * Combined with a writer that sends its data as it goes, the memory used does not depend on the size of the result.
+ */
+public final class JSONWriter {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private JSONWriter() {
+    }
+
+    /**
+     * Writes a value as JSON
+     * @param value Value to write, a map, a list, a string, a number, a boolean, null or a JSON-aware object
+     * @param out Writer to write to
+     * @throws IOException If the writer fails
+     */
+    @SuppressWarnings("rawtypes")
+    public static void write(final Object value, final Writer out) throws IOException {
+        if (value == null)
+            out.write("null");
+        else if (value instanceof String)
+            writeString((String) value, out);
+        else if (value instanceof Double)
+            out.write(((Double) value).isInfinite() || ((Double) value).isNaN() ? "null" : value.toString());
+        else if (value instanceof Float)
+            out.write(((Float) value).isInfinite() || ((Float) value).isNaN() ? "null" : value.toString());
+        else if (value instanceof Number || value instanceof Boolean)
+            out.write(value.toString());
+        else if (value instanceof Map && (value instanceof JSONObject || !isJSONAware(value)))
+            writeMap((Map) value, out);
+        else if (value instanceof List && (value instanceof JSONArray || !isJSONAware(value)))
+            writeList((List) value, out);
+        else if (value instanceof JSONStreamAware)
+            ((JSONStreamAware) value).writeJSONString(out);
+        else if (value instanceof JSONAware)
+            out.write(((JSONAware) value).toJSONString());
+        else
+            out.write(value.toString());
+    }
+
+    private static boolean isJSONAware(final Object value) {
+        return value instanceof JSONStreamAware || value instanceof JSONAware;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void writeMap(final Map map, final Writer out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (final Iterator iterator = map.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            if (!first)
+                out.write(',');
+            first = false;
+            writeString(String.valueOf(entry.getKey()), out);
+            out.write(':');
+            write(entry.getValue(), out);
+        }
+        out.write('}');
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void writeList(final List list, final Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (final Iterator iterator = list.iterator(); iterator.hasNext();) {
+            if (!first)
+                out.write(',');
+            first = false;
+            write(iterator.next(), out);
+        }
+        out.write(']');
+    }
+
+    /**
+     * Writes a quoted string, passing runs of characters that need no escaping to the writer untouched
+     */
+    private static void writeString(final String string, final Writer out) throws IOException {
+        out.write('"');
+        int run = 0;
+        final int length = string.length();
+        for (int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            final String escape;
+            switch (c) {
+            case '"':
+                escape = "\\\"";
+                break;
+            case '\\':
+                escape = "\\\\";
+                break;
+            case '/':
+                escape = "\\/";
+                break;
+            case '\b':
+                escape = "\\b";
+                break;
+            case '\f':
+                escape = "\\f";
+                break;
+            case '\n':
+                escape = "\\n";
+                break;
+            case '\r':
+                escape = "\\r";
+                break;
+            case '\t':
+                escape = "\\t";
+                break;
+            default:
+                if (c <= 0x1F || c >= 0x7F && c <= 0x9F || c >= 0x2000 && c <= 0x20FF)
+                    escape = null;
+                else
+                    continue;
+            }
+            if (i > run)
+                out.write(string, run, i - run);
+            run = i + 1;
+            if (escape != null)
+                out.write(escape);
+            else {
+                out.write("\\u");
+                out.write(HEX_DIGITS[c >> 12 & 0xF]);
+                out.write(HEX_DIGITS[c >> 8 & 0xF]);
+                out.write(HEX_DIGITS[c >> 4 & 0xF]);
+                out.write(HEX_DIGITS[c & 0xF]);
+            }
+        }
+        if (length > run)
+            out.write(string, run, length - run);
+        out.write('"');
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This file is part of SpaceRTK (http://SpaceRTK.xereo.net/).
+ *
+ * SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+ * Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+ * either version 3.0 of the license, or (at your option) any later version.
+ *
+ * SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+ * Unported (CC BY-NC-SA) license for more details.
+ *
+ * You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+ * this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+ */
+package me.neatmonster.spacertk.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import me.neatmonster.spacertk.SpaceRTK;
+import me.neatmonster.spacertk.metrics.ActionMetrics;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Calls methods of the SpaceBukkit plugin over HTTP, keeping a few connections open between calls so each
+ * call does not pay for a new connection. The latency of every call is recorded per method.
+ */
+public class PluginClient {
+    private static final long IDLE_TIMEOUT = 15000L; //Milliseconds an unused connection is kept open
+    private static final int  MAX_LINE     = 8192;   //Longest status or header line accepted
+
+    private final String                       host;
+    private final int                          port;
+    private final int                          connectTimeout;
+    private final int                          readTimeout;
+    private final int                          poolSize;
+    private final ActionMetrics                metrics;
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+    /**
+     * Creates a new client
+     * @param host Host SpaceBukkit listens on
+     * @param port Port SpaceBukkit listens on
+     * @param connectTimeout Milliseconds to wait for a connection to be established
+     * @param readTimeout Milliseconds to wait for SpaceBukkit to answer
+     * @param poolSize Number of idle connections kept open
+     * @param metrics Metrics to record the calls in
+     */
+    public PluginClient(final String host, final int port, final int connectTimeout, final int readTimeout,
+            final int poolSize, final ActionMetrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.poolSize = poolSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calls a method of SpaceBukkit
+     * @param method Method to call
+     * @param arguments Arguments of the method, as a JSON array
+     * @return Answer of SpaceBukkit
+     * @throws IOException If SpaceBukkit cannot be reached or does not answer
+     */
+    public String call(final String method, final String arguments) throws IOException {
+        return request("/call?method=" + encode(method) + "&args=" + encode(arguments) + "&key=" + key(method),
+                method);
+    }
+
+    /**
+     * Calls several methods of SpaceBukkit in a single request
+     * @param methods Methods to call
+     * @param arguments Arguments of each method
+     * @return Answer of SpaceBukkit, a JSON array of the results in the order of the methods
+     * @throws IOException If SpaceBukkit cannot be reached or does not answer
+     */
+    public String callMultiple(final String[] methods, final Object[][] arguments) throws IOException {
+        final List<List<Object>> argumentsList = new LinkedList<List<Object>>();
+        for (final Object[] args : arguments)
+            argumentsList.add(Arrays.asList(args));
+        final String methodsString = JSONValue.toJSONString(Arrays.asList(methods));
+        return request("/multiple?method=" + encode(methodsString) + "&args="
+                + encode(JSONValue.toJSONString(argumentsList)) + "&key=" + key(methodsString), "multiple");
+    }
+
+    /**
+     * Pings SpaceBukkit
+     * @return Answer of SpaceBukkit, "Pong!" when it is up
+     * @throws IOException If SpaceBukkit cannot be reached or does not answer
+     */
+    public String ping() throws IOException {
+        return request("/ping", "ping");
+    }
+
+    /**
+     * Closes the idle connections
+     */
+    public void close() {
+        synchronized (idle) {
+            for (final PooledConnection connection : idle)
+                connection.close();
+            idle.clear();
+        }
+    }
+
+    private String request(final String path, final String name) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            while (true) {
+                final PooledConnection connection = borrow();
+                try {
+                    final String body = connection.exchange(path);
+                    failed = false;
+                    if (connection.reusable)
+                        release(connection);
+                    else
+                        connection.close();
+                    return body;
+                } catch (final IOException e) {
+                    connection.close();
+                    if (!connection.reused || connection.answered || e instanceof SocketTimeoutException)
+                        throw e;
+                    // SpaceBukkit closed the connection while it was idle, the request never reached it.
+                }
+            }
+        } finally {
+            metrics.record(name, (System.nanoTime() - start) / 1000L, failed);
+        }
+    }
+
+    private PooledConnection borrow() throws IOException {
+        final long now = System.currentTimeMillis();
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                final PooledConnection connection = idle.removeLast();
+                if (now - connection.lastUsed < IDLE_TIMEOUT && !connection.socket.isClosed())
+                    return connection;
+                connection.close();
+            }
+        }
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+        } catch (final IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new PooledConnection(socket);
+    }
+
+    private void release(final PooledConnection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        connection.reused = true;
+        synchronized (idle) {
+            for (final Iterator<PooledConnection> it = idle.iterator(); it.hasNext() && idle.size() >= poolSize;) {
+                it.next().close();
+                it.remove();
+            }
+            if (poolSize > 0)
+                idle.addLast(connection);
+            else
+                connection.close();
+        }
+    }
+
+    private static String key(final String method) throws IOException {
+        try {
+            return SpaceRTK.getInstance().authenticator.getKey(method);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not supported");
+        }
+    }
+
+    private static String encode(final String string) throws IOException {
+        return URLEncoder.encode(string, "UTF-8");
+    }
+
+    /**
+     * A connection to SpaceBukkit, answering one request at a time
+     */
+    private class PooledConnection {
+        final Socket       socket;
+        final InputStream  input;
+        final OutputStream output;
+        long               lastUsed;
+        boolean            reused   = false;
+        boolean            reusable = false;
+        boolean            answered = false;
+
+        PooledConnection(final Socket socket) throws IOException {
+            this.socket = socket;
+            input = new BufferedInputStream(socket.getInputStream());
+            output = socket.getOutputStream();
+        }
+
+        /**
+         * Sends a GET request and reads the whole answer
+         * @param path Path and query of the request
+         * @return Body of the answer, without its line breaks
+         * @throws IOException If the request fails or the answer is not a 200
+         */
+        String exchange(final String path) throws IOException {
+            answered = false;
+            reusable = false;
+            output.write(("GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + host + ":" + port + "\r\n"
+                    + "Connection: keep-alive\r\n\r\n").getBytes("UTF-8"));
+            output.flush();
+            final String status = readLine();
+            if (status == null)
+                throw new IOException("Connection closed by SpaceBukkit");
+            answered = true;
+            final String[] statusParts = status.split(" ", 3);
+            if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/"))
+                throw new IOException("Malformed answer from SpaceBukkit: " + status);
+            boolean keepAlive = statusParts[0].equals("HTTP/1.1");
+            boolean chunked = false;
+            long length = -1L;
+            String line;
+            while ((line = readLine()) != null && line.length() > 0) {
+                final int colon = line.indexOf(':');
+                if (colon <= 0)
+                    continue;
+                final String name = line.substring(0, colon).trim();
+                final String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    length = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                    chunked = value.equalsIgnoreCase("chunked");
+                else if (name.equalsIgnoreCase("Connection"))
+                    keepAlive = value.equalsIgnoreCase("keep-alive");
+            }
+            if (line == null)
+                throw new IOException("Connection closed by SpaceBukkit");
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (chunked)
+                readChunked(body);
+            else if (length >= 0L)
+                readFully(body, length);
+            else {
+                readToEnd(body); // Delimited by the end of the connection.
+                keepAlive = false;
+            }
+            reusable = keepAlive;
+            if (!statusParts[1].equals("200"))
+                throw new IOException("SpaceBukkit answered " + status);
+            // Callers always received the answer read line by line and joined, keep it that way.
+            return body.toString("UTF-8").replace("\r", "").replace("\n", "");
+        }
+
+        private void readChunked(final ByteArrayOutputStream body) throws IOException {
+            while (true) {
+                final String sizeLine = readLine();
+                if (sizeLine == null)
+                    throw new IOException("Connection closed by SpaceBukkit");
+                final int extension = sizeLine.indexOf(';');
+                final long size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(),
+                        16);
+                if (size == 0L)
+                    break;
+                readFully(body, size);
+                readLine();
+            }
+            String trailer;
+            while ((trailer = readLine()) != null && trailer.length() > 0)
+                ; // Trailers are not used.
+        }
+
+        private void readFully(final ByteArrayOutputStream body, long length) throws IOException {
+            final byte[] buffer = new byte[4096];
+            while (length > 0L) {
+                final int read = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read < 0)
+                    throw new IOException("Connection closed by SpaceBukkit");
+                body.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+
+        private void readToEnd(final ByteArrayOutputStream body) throws IOException {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0)
+                body.write(buffer, 0, read);
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0)
+                    return line.length() == 0 ? null : line.toString();
+                if (line.length() >= MAX_LINE)
+                    throw new IOException("Line too long in the answer of SpaceBukkit");
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // Already closed.
+            }
+        }
+    }
+}
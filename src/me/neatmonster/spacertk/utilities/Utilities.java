@@ -14,18 +14,15 @@
  */
 package me.neatmonster.spacertk.utilities;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -43,6 +40,22 @@ public class Utilities {
      */
     public static Logger logger = Logger.getLogger("Minecraft");
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * SHA-256 digests are not thread-safe and costly to look up, so each thread keeps its own
+     */
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     /**
      * Adds the HTTP header to a string
      * @param string String to add to
@@ -50,15 +63,28 @@ public class Utilities {
      * @throws UnsupportedEncodingException If the encoding is not UTF-8
      */
     public static String addHeader(final String string) throws UnsupportedEncodingException {
+        return addHeader(string, false);
+    }
+
+    /**
+     * Adds the HTTP header to a string
+     * @param string String to add to
+     * @param keepAlive If the connection is kept open after this response
+     * @return String with the header
+     * @throws UnsupportedEncodingException If the encoding is not UTF-8
+     */
+    public static String addHeader(final String string, final boolean keepAlive) throws UnsupportedEncodingException {
         String finishedString = "";
         String byteLengthOfFinishedString = "";
         final String newLine = "\r\n";
+        final String connection = "Connection:" + (keepAlive ? "keep-alive" : "close") + newLine;
         if (string != null) {
             byteLengthOfFinishedString = Integer.toString(string.getBytes("UTF8").length);
             finishedString += "HTTP/1.1 200 OK" + newLine;
             finishedString += "Content-Language:en" + newLine;
             finishedString += "Content-Length:" + byteLengthOfFinishedString + newLine;
             finishedString += "Content-Type:text/plain; charset=utf-8" + newLine;
+            finishedString += connection;
             finishedString += newLine;
             finishedString += string;
         } else {
@@ -66,6 +92,7 @@ public class Utilities {
             finishedString += "Content-Language:en" + newLine;
             finishedString += "Content-Length:0" + newLine;
             finishedString += "Content-Type:text/html; charset=utf-8" + newLine;
+            finishedString += connection;
             finishedString += newLine;
         }
         return finishedString;
@@ -78,25 +105,24 @@ public class Utilities {
      * @throws NoSuchAlgorithmException If SHA-256 or UTF-8 is not supported
      */
     public static String crypt(final String string) throws NoSuchAlgorithmException {
-        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final MessageDigest digest = SHA256.get();
+        if (digest == null)
+            throw new NoSuchAlgorithmException("SHA-256 is not supported");
         digest.reset();
-        byte[] input = null;
         try {
-            input = digest.digest(string.getBytes("UTF-8"));
-            final StringBuffer hexString = new StringBuffer();
-            for (final byte element : input) {
-                final String hex = Integer.toHexString(0xFF & element);
-                if (hex.length() == 1)
-                    hexString.append('0');
-                hexString.append(hex);
+            final byte[] input = digest.digest(string.getBytes("UTF-8"));
+            final char[] hexString = new char[input.length * 2];
+            for (int i = 0; i < input.length; i++) {
+                hexString[i * 2] = HEX_DIGITS[(input[i] >> 4) & 0xF];
+                hexString[i * 2 + 1] = HEX_DIGITS[input[i] & 0xF];
             }
-            return hexString.toString();
+            return new String(hexString);
         } catch (final UnsupportedEncodingException e) {
             e.printStackTrace();
         }
         return "UnsupportedEncodingException";
     }
-    
+
     /**
      * Gets the MD5 of a file
      * @param file File to get the MD5 of
@@ -125,29 +151,41 @@ public class Utilities {
      */
     public static String sendMethod(final String method, final String arguments) {
         try {
-            final URL url = new URL("http://localhost:" + SpaceRTK.getInstance().port + "/call?method=" + method
-                    + "&args=" + arguments + "&key=" + Utilities.crypt(method + SpaceRTK.getInstance().salt));
-            final URLConnection connection = url.openConnection();
-            final BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            final StringBuffer stringBuffer = new StringBuffer();
-            String line;
-            while ((line = bufferedReader.readLine()) != null)
-                stringBuffer.append(line);
-            bufferedReader.close();
-            return stringBuffer.toString();
+            return SpaceRTK.getInstance().pluginClient.call(method, arguments);
+        } catch (final ConnectException e) {
+            logUnreachable();
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Sends several methods to the plugin in a single request
+     * @param methods Methods to send
+     * @param arguments Arguments of each method
+     * @return Results of the methods as a JSON array, in the order of the methods
+     */
+    public static String sendMethods(final String[] methods, final Object[][] arguments) {
+        try {
+            return SpaceRTK.getInstance().pluginClient.callMultiple(methods, arguments);
         } catch (final ConnectException e) {
-            logger.severe("----------------------------------------------------------");
-            logger.severe("| SpaceBukkit cannot be reached, please make sure you    |");
-            logger.severe("| have placed the awesome plugin to your plugins folder. |");
-            logger.severe("| Otherwise report this issue on our issues tracker      |");
-            logger.severe("| (http://bit.ly/spacebukkitissues).                     |");
-            logger.severe("----------------------------------------------------------");
+            logUnreachable();
         } catch (final Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    private static void logUnreachable() {
+        logger.severe("----------------------------------------------------------");
+        logger.severe("| SpaceBukkit cannot be reached, please make sure you    |");
+        logger.severe("| have placed the awesome plugin to your plugins folder. |");
+        logger.severe("| Otherwise report this issue on our issues tracker      |");
+        logger.severe("| (http://bit.ly/spacebukkitissues).                     |");
+        logger.severe("----------------------------------------------------------");
+    }
+
     /**
      * Initializes and builds an FSTree rooted at at the specified base directory
      * and traversed starting at the specified directory.
@@ -175,7 +213,7 @@ public class Utilities {
     private static void buildTFSTree(TFile file, URI base, FSTree tree) {
         for(TFile f : file.listFiles()) {
             if(!f.isDirectory() || f.isArchive()) {
-                tree.add(base.relativize(f.toNonArchiveFile().toURI()).getPath(), getFileSize(f));
+                tree.add(base.relativize(f.toNonArchiveFile().toURI()).getPath(), getFileSize(f), f.lastModified());
             } else {
                 buildTFSTree(f, base, tree);
             }
@@ -188,7 +226,7 @@ public class Utilities {
     private static void buildFSTree(File file, URI base, FSTree tree) {
         for(File f : file.listFiles()) {
             if(!f.isDirectory()) {
-                tree.add(base.relativize(f.toURI()).getPath(), getFileSize(f));
+                tree.add(base.relativize(f.toURI()).getPath(), getFileSize(f), f.lastModified());
             } else {
                 buildFSTree(f, base, tree);
             }
@@ -50,7 +50,7 @@ public class ZIP {
         if (folder.isDirectory())
             addFolderToZip(path, srcFile, zip);
         else {
-            final byte[] buf = new byte[1024];
+            final byte[] buf = new byte[8192];
             int len;
             FileInputStream in = null;
             try {
@@ -154,15 +154,32 @@ public class ZIP {
         if (archive.exists())
             archive.delete();
         try {
-            ZipOutputStream zip = null;
-            FileOutputStream fileWriter = null;
-            fileWriter = new FileOutputStream(archive);
-            zip = new ZipOutputStream(fileWriter);
-            addFolderToZip("", folder.getPath(), zip);
-            zip.flush();
-            zip.close();
+            final OutputStream fileWriter = new BufferedOutputStream(new FileOutputStream(archive));
+            try {
+                zip(fileWriter, folder);
+            } finally {
+                fileWriter.close();
+            }
         } catch (final Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Zips a folder directly onto a stream, without creating a temporary archive.
+     * The stream is not closed.
+     *
+     * @param output
+     *            the stream to write the archive to
+     * @param folder
+     *            the folder
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static void zip(final OutputStream output, final File folder) throws IOException {
+        final ZipOutputStream zip = new ZipOutputStream(output);
+        addFolderToZip("", folder.getPath(), zip);
+        zip.finish();
+        zip.flush();
+    }
 }
@@ -0,0 +1,163 @@
+/*
+* This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+*
+* SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+* Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+* either version 3.0 of the license, or (at your option) any later version.
+*
+* SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+* warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+* Unported (CC BY-NC-SA) license for more details.
+*
+* You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+* this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+*/
+package me.neatmonster.spacertk.utilities.backup;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how each file of a backup is compressed from its extension. The selection is given as a list of
+ * codecs and the extensions they apply to, plus a default for the other files:
+ * <pre>
+ * store=mca,mcr,jar;deflate=txt,yml;default=fast
+ * </pre>
+ *
+ * Every codec produces data any zip reader or Inflater can read, so restores need no knowledge of the selection.
+ */
+public class BackupCodecs {
+    public static final String DEFAULT_SELECTION = "store=mca,mcr,mcc,jar,zip,png,gz,dat,dat_old,schematic"
+            + ";deflate=txt,log,yml,yaml,json,properties,cfg,conf,xml,csv,lang,js,sk;default=fast";
+
+    /**
+     * A way of compressing a file
+     */
+    public enum Codec {
+        /**
+         * No compression, for data that is already compressed
+         */
+        STORE,
+        /**
+         * Deflate at the fastest level
+         */
+        FAST,
+        /**
+         * Deflate at the configured level
+         */
+        DEFLATE;
+
+        /**
+         * Gets a codec from its name
+         * @param name Name of the codec
+         * @return The matching codec, or null if there is none
+         */
+        public static Codec fromString(String name) {
+            for(Codec codec : values())
+                if(codec.name().equalsIgnoreCase(name.trim()))
+                    return codec;
+            return null;
+        }
+    }
+
+    private final Map<String, Codec> extensions = new HashMap<String, Codec>();
+    private final int level;
+    private Codec fallback = Codec.DEFLATE;
+
+    /**
+     * Parses a codec selection. Unknown codecs are reported and ignored.
+     * @param selection the codecs and the extensions they apply to.
+     * @param level the level DEFLATE compresses with, from 0 to 9, or -1 for the default.
+     */
+    public BackupCodecs(String selection, int level) {
+        this.level = level;
+        if(selection == null)
+            return;
+
+        for(String rule : selection.split(";")) {
+            String[] split = rule.split("=", 2);
+            if(split.length != 2)
+                continue;
+
+            if(split[0].trim().equalsIgnoreCase("default")) {
+                Codec codec = Codec.fromString(split[1]);
+                if(codec != null)
+                    fallback = codec;
+                else
+                    System.err.println("Unknown backup codec \""+split[1]+"\"");
+                continue;
+            }
+
+            Codec codec = Codec.fromString(split[0]);
+            if(codec == null) {
+                System.err.println("Unknown backup codec \""+split[0]+"\"");
+                continue;
+            }
+            for(String extension : split[1].split(","))
+                if(!extension.trim().isEmpty())
+                    extensions.put(extension.trim().toLowerCase(), codec);
+        }
+    }
+
+    /**
+     * Select the codec of a file.
+     * @param fileName the name or path of the file.
+     * @return the codec to compress the file with.
+     */
+    public Codec select(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if(dot == -1 || dot < Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')))
+            return fallback;
+
+        Codec codec = extensions.get(fileName.substring(dot + 1).toLowerCase());
+        return codec == null ? fallback : codec;
+    }
+
+    /**
+     * Get the level DEFLATE compresses with.
+     * @return the level, from 0 to 9, or -1 for the default.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the Deflater level of a codec.
+     * @param codec the codec.
+     * @return the level to compress with.
+     */
+    public int getLevel(Codec codec) {
+        switch(codec) {
+        case STORE:
+            return Deflater.NO_COMPRESSION;
+        case FAST:
+            return Deflater.BEST_SPEED;
+        default:
+            return level;
+        }
+    }
+
+    /**
+     * Get the selection in the form it is parsed from.
+     */
+    @Override
+    public String toString() {
+        Map<Codec, StringBuilder> rules = new LinkedHashMap<Codec, StringBuilder>();
+        for(Codec codec : Codec.values())
+            rules.put(codec, new StringBuilder());
+        for(Map.Entry<String, Codec> entry : extensions.entrySet()) {
+            StringBuilder builder = rules.get(entry.getValue());
+            if(builder.length() > 0)
+                builder.append(',');
+            builder.append(entry.getKey());
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for(Map.Entry<Codec, StringBuilder> rule : rules.entrySet())
+            if(rule.getValue().length() > 0)
+                selection.append(rule.getKey().name().toLowerCase()).append('=').append(rule.getValue()).append(';');
+        return selection.append("default=").append(fallback.name().toLowerCase()).toString();
+    }
+}
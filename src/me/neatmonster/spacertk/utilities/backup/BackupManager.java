@@ -26,11 +26,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipEntry;
@@ -105,12 +107,14 @@ public class BackupManager {
 
         for(File f : backupDir.listFiles()) {
             ZipFile zFile = null;
+            if(f.isDirectory())
+                continue;
 
             try {
                 zFile = new ZipFile(f);
                 Backup b = getBackup(zFile, f);
 
-                registerBackup(b);
+                addBackup(b);
             } catch (ZipException e) {
                 //Probably not a valid zip file.
             } catch (IOException e) {
@@ -124,13 +128,38 @@ public class BackupManager {
                 }
             }
         }
+
+        BackupStore store = getStore();
+        for(File f : store.listManifests()) {
+            try {
+                BackupStore.Manifest manifest = store.readManifest(f, true);
+                addBackup(new Backup(manifest.uid, manifest.name, manifest.date, manifest.size, null, f));
+            } catch (IOException e) {
+                System.err.println("Unexpected exception loading backup metadata for \""+f.getName()+"\": "+e.getMessage());
+            }
+        }
+        //Nothing is cached yet when the backups are first loaded, on startup.
+        if(backupsLastLoaded != 0L)
+            invalidateBackups();
         backupsLastLoaded = System.currentTimeMillis();
     }
 
     private synchronized void registerBackup(Backup b) {
+        if(b != null) {
+            addBackup(b);
+            invalidateBackups();
+        }
+        //TODO: print a warning if the backup is null
+    }
+
+    private synchronized void addBackup(Backup b) {
         if(b != null)
             backups.put(b.uid, b);
-        //TODO: print a warning if the backup is null
+    }
+
+    private void invalidateBackups() {
+        SpaceRTK.getInstance().resultCache.invalidate("getBackups");
+        SpaceRTK.getInstance().resultCache.invalidate("getBackupStoreInfo");
     }
 
     /**
@@ -167,7 +196,7 @@ public class BackupManager {
         }
 
         return new Backup(meta.get("uid"), meta.get("name"), Long.parseLong(meta.get("date")),
-                Long.parseLong(meta.get("size")), f);
+                Long.parseLong(meta.get("size")), meta.get("base"), f);
     }
 
     private void refreshBackups() {
@@ -181,22 +210,117 @@ public class BackupManager {
         return instance;
     }
 
+    /**
+     * Get the chain of backups needed to restore a backup, made of the backup itself followed by the backups it
+     * was based on.
+     * @param backup the backup to restore.
+     * @return the backups of the chain, newest first, or null if one of them is missing.
+     */
+    private synchronized List<Backup> getChain(Backup backup) {
+        List<Backup> chain = new ArrayList<Backup>();
+
+        while(backup != null) {
+            if(!backup.backupFile.exists() || chain.size() > backups.size())
+                return null;
+            chain.add(backup);
+            if(backup.base == null)
+                return chain;
+            backup = backups.get(backup.base);
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of threads compressing new archives.
+     * @return the configured number of threads, at least 1.
+     */
+    static int getCompressionThreads() {
+        return Math.max(1, SpaceRTK.getInstance().backupCompressionThreads);
+    }
+
+    /**
+     * Get the level files of the DEFLATE codec are compressed with.
+     * @return the configured level, from 0 to 9, or -1 for the default.
+     */
+    static int getCompressionLevel() {
+        return Math.max(Deflater.DEFAULT_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, SpaceRTK.getInstance().backupCompressionLevel));
+    }
+
+    /**
+     * Get the codecs backup files are compressed with, given by the extensions they apply to.
+     * @return the configured codec selection.
+     */
+    static String getCodecSelection() {
+        String selection = SpaceRTK.getInstance().backupCodecs;
+        return selection == null ? BackupCodecs.DEFAULT_SELECTION : selection;
+    }
+
+    /**
+     * Get the store backups can be kept in instead of archives.
+     * @return the backup store.
+     */
+    private BackupStore getStore() {
+        File backupDir = new File(SpaceRTK.baseDir, SpaceRTK.getInstance().backupDirName);
+        return new BackupStore(new File(backupDir, BackupStore.STORE_DIRECTORY),
+                new BackupCodecs(getCodecSelection(), getCompressionLevel()));
+    }
+
+    /**
+     * Find the latest backup of a given name.
+     * @param backupName the name of the backup.
+     * @param stored true to look for a backup kept in the store, false for an archive.
+     * @return the latest backup of that name, or null if there is none.
+     */
+    private synchronized Backup getLatestBackup(String backupName, boolean stored) {
+        refreshBackups();
+        Backup latest = null;
+
+        for(Backup b : backups.values())
+            if(b.name != null && b.name.equals(backupName) && BackupStore.isManifest(b.backupFile) == stored
+                    && (latest == null || b.date > latest.date))
+                latest = b;
+        return latest;
+    }
+
+    /**
+     * Find the backup an incremental backup should be based on: the latest archive of the same name, unless its
+     * chain is already as long as allowed or broken.
+     * @param backupName the name of the backup.
+     * @return the backup to base the incremental backup on, or null if a full backup should be made.
+     */
+    private synchronized Backup getIncrementBase(String backupName) {
+        Backup latest = getLatestBackup(backupName, false);
+
+        if(latest == null)
+            return null;
+        List<Backup> chain = getChain(latest);
+        if(chain == null || chain.size() > Math.max(0, SpaceRTK.getInstance().backupMaxIncrements))
+            return null;
+        return latest;
+    }
+
     /**
      * Attempt to queue a backup operation.
      *
      * @param offline true if the server should be held prior to performing the backup, false otherwise.
      * @param ignoreImmediateFiles True if regular files in the backup directory
      * root should be ignored, false otherwise.
+     * @param incremental true if only the files changed since the last backup of the same name should be saved,
+     * false otherwise.
      * @param backupName the name of the backup.
-     * @param outputFile The file or folder to save the backup to.
+     * @param outputFile The file or folder to save the backup to, or a manifest file in the backup store.
      * @param ignoredFolders Folders to ignore given by their paths relative to the base directory.
      * @param folder The folder to backup.
      * @param folders Additional folders to backup.
      * @return the uid of the backup.
      */
-    public synchronized String performBackup(boolean offline, boolean ignoreImmediateFiles,
+    public synchronized String performBackup(boolean offline, boolean ignoreImmediateFiles, boolean incremental,
             String backupName, File outputFile, URI[] ignoredFolders, File folder, File... folders) {
         String uid = null;
+        boolean stored = BackupStore.isManifest(outputFile);
+        Backup previous = stored ? getLatestBackup(backupName, true) : incremental ? getIncrementBase(backupName) : null;
+        String baseUid = previous == null || stored ? null : previous.uid;
+        File previousFile = previous == null ? null : previous.backupFile;
         List<URI> ignoreList = new LinkedList<URI>(Arrays.asList(ignoredFolders));
 
         if(ignoreImmediateFiles && folder.isDirectory())
@@ -211,11 +335,14 @@ public class BackupManager {
 
         try {
             if(offline)
-                bThread = new IsolatedBackupThread(backupName, uid, SpaceRTK.baseDir,
-                        SpaceRTK.baseDir.toURI(), ignoreList, false, outputFile, folder, folders);
+                bThread = new IsolatedBackupThread(backupName, uid, baseUid, SpaceRTK.baseDir,
+                        SpaceRTK.baseDir.toURI(), ignoreList, false, previousFile, outputFile, folder, folders);
             else
-                bThread = new BackupThread(false, true, backupName, uid, SpaceRTK.baseDir,
-                        SpaceRTK.baseDir.toURI(), ignoreList, false, offline, outputFile, folder, folders);
+                bThread = new BackupThread(false, true, backupName, uid, baseUid, SpaceRTK.baseDir,
+                        SpaceRTK.baseDir.toURI(), ignoreList, false, offline, previousFile, outputFile, folder, folders);
+            bThread.compressionThreads = getCompressionThreads();
+            bThread.compressionLevel = getCompressionLevel();
+            bThread.codecSelection = getCodecSelection();
 
             backupThreadRegistry.put(bThread.uid, bThread);
             queueOperation(bThread);
@@ -235,7 +362,8 @@ public class BackupManager {
 
 
     /**
-     * Attempt to queue a restore operation.
+     * Attempt to queue a restore operation. Incremental backups are restored from the backups they are based on,
+     * which must still exist.
      *
      * @param offline true if the server should be held prior to performing the restore, false otherwise.
      * @param clearDest true if the destination should be wiped prior to restoring the backup, false otherwise.
@@ -248,15 +376,21 @@ public class BackupManager {
         Backup backup = backups.get(uid);
         if(backup == null)
             return false;
+        List<Backup> chain = getChain(backup);
+        if(chain == null)
+            return false;
+        File[] bases = new File[chain.size() - 1];
+        for(int i = 0; i < bases.length; i++)
+            bases[i] = chain.get(i + 1).backupFile;
         BackupThread bThread = null;
 
         try {
             if(offline)
-                bThread = new IsolatedBackupThread(backup.name, backup.uid, SpaceRTK.baseDir, SpaceRTK.baseDir.toURI(),
-                        Arrays.asList(new URI[]{}), clearDest, dest, backup.backupFile);
+                bThread = new IsolatedBackupThread(backup.name, backup.uid, null, SpaceRTK.baseDir, SpaceRTK.baseDir.toURI(),
+                        Arrays.asList(new URI[]{}), clearDest, null, dest, backup.backupFile, bases);
             else
-                bThread = new BackupThread(false, true, backup.name, backup.uid, SpaceRTK.baseDir, SpaceRTK.baseDir.toURI(),
-                        Arrays.asList(new URI[]{}), clearDest, offline, dest, backup.backupFile);
+                bThread = new BackupThread(false, true, backup.name, backup.uid, null, SpaceRTK.baseDir, SpaceRTK.baseDir.toURI(),
+                        Arrays.asList(new URI[]{}), clearDest, offline, null, dest, backup.backupFile, bases);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -314,6 +448,79 @@ public class BackupManager {
         return operationList;
     }
 
+    /**
+     * Get the name, file name, start time, progress, status, current file, data copied and size of an operation,
+     * all read at once.
+     * @param uid the UID of the backup/restore operation.
+     * @return the information about the operation, as strings.
+     */
+    public synchronized List<String> getOperationInfo(String uid) {
+        List<String> info = new ArrayList<String>(8);
+        info.add(getOperationName(uid));
+        info.add(getOperationFileName(uid));
+        info.add(""+getOperationStartTime(uid));
+        info.add(getOperationProgress(uid).replace(',', '.'));
+        info.add(getOperationStatus(uid));
+        info.add(getOperationFile(uid));
+        info.add(""+getOperationDataCopied(uid));
+        info.add(""+getOperationSize(uid));
+        return info;
+    }
+
+    /**
+     * Wait for the state of an operation to change, then get its information.
+     * @param uid the UID of the backup/restore operation.
+     * @param seen the number of updates of the operation already seen by the caller, -1 to return at once.
+     * @param timeout the maximum time to wait, in milliseconds.
+     * @return the state of the operation, unchanged if the timeout expired first, or null if there is no such
+     *         operation.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public OperationUpdate awaitOperationUpdate(String uid, long seen, long timeout) throws InterruptedException {
+        BackupThread bThread;
+        synchronized(this) {
+            bThread = backupThreadRegistry.get(uid);
+            if(bThread == null)
+                return backups.containsKey(uid) ? new OperationUpdate(0L, getOperationInfo(uid), true) : null;
+        }
+
+        long updates = seen < 0L ? bThread.getUpdates() : bThread.awaitUpdate(seen, timeout);
+        synchronized(this) {
+            return new OperationUpdate(updates, getOperationInfo(uid), bThread.endTime != -1L);
+        }
+    }
+
+    /**
+     * Get the sizes of the backups kept in the store: their logical size, the total size of their files, and their
+     * physical size, the space they take once deduplicated and compressed.
+     * @return the number of backups and the logical and physical sizes of the store and of each backup.
+     */
+    public synchronized Map<String, Object> getStoreInfo() {
+        refreshBackups();
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        Map<String, Object> sizes = new LinkedHashMap<String, Object>();
+        BackupStore store = getStore();
+        long logical = 0L;
+        long physical = 0L;
+
+        for(File f : store.listManifests()) {
+            try {
+                BackupStore.Manifest manifest = store.readManifest(f, true);
+                logical += manifest.getSize();
+                physical += manifest.getAdded() + f.length();
+                sizes.put(manifest.uid, Arrays.asList(manifest.getSize(), manifest.getAdded() + f.length()));
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        info.put("backups", sizes.size());
+        info.put("logicalSize", logical);
+        info.put("physicalSize", physical);
+        info.put("sizes", sizes);
+        return info;
+    }
+
     /**
      * Retrieve the metadata of a single backup given its UID.
      * @param uid the UID of the backup.
@@ -522,6 +729,21 @@ public class BackupManager {
 
 
 
+    /**
+     * The state of an operation at a given update
+     */
+    public static class OperationUpdate {
+        public final long updates;
+        public final List<String> info;
+        public final boolean done;
+
+        OperationUpdate(long updates, List<String> info, boolean done) {
+            this.updates = updates;
+            this.info = info;
+            this.done = done;
+        }
+    }
+
     /**
      * Represents a single backup archive
      */
@@ -530,13 +752,15 @@ public class BackupManager {
         String uid;
         long date;
         long size;
+        String base;
         File backupFile;
 
-        public Backup(String uid, String name, long date, long size, File backupFile) {
+        public Backup(String uid, String name, long date, long size, String base, File backupFile) {
             this.uid = uid;
             this.name = name;
             this.date = date;
             this.size = size;
+            this.base = base;
             this.backupFile = backupFile;
         }
     }
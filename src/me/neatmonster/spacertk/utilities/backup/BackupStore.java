@@ -0,0 +1,610 @@
+/*
+* This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+*
+* SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+* Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+* either version 3.0 of the license, or (at your option) any later version.
+*
+* SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+* warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+* Unported (CC BY-NC-SA) license for more details.
+*
+* You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+* this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+*/
+package me.neatmonster.spacertk.utilities.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import me.hwei.mctool.world.RegionFileForBackup;
+import me.neatmonster.spacertk.utilities.FSTree;
+
+/**
+ * A content-addressed backup store. Files are cut into content-defined chunks, each kept once as a deflated blob
+ * named after its SHA-256 hash, so data shared by several backups (or several files) is only stored once.
+ * Every backup is a manifest listing its files and the chunks they are made of.
+ *
+ * Region files are not cut by content but along the chunks of the world they hold: each chunk is a blob of its
+ * compressed bytes, recorded with its place in the region and the time it was saved, so a backup only writes the
+ * chunks of the world that were saved since the last one.
+ *
+ * Layout of the store:
+ * <pre>
+ * manifests/&lt;name&gt;.manifest
+ * blobs/&lt;first two hex digits&gt;/&lt;SHA-256 of the chunk&gt;
+ * </pre>
+ *
+ * Blobs are deflated at the level of the codec of their file, storing them as they are if it is STORE, so any
+ * blob can be read with an Inflater. Blobs are never removed, a store only grows.
+ */
+public class BackupStore {
+    public static final String STORE_DIRECTORY = "store";
+    public static final String MANIFEST_DIRECTORY = "manifests";
+    public static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String BLOB_DIRECTORY = "blobs";
+    private static final int MANIFEST_MAGIC = 0x53524B4D; //"SRKM"
+    private static final byte MANIFEST_VERSION = 2;
+    private static final byte ENTRY_CHUNKS = 0;
+    private static final byte ENTRY_REGION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int BUFFER_SIZE = 65536;
+
+    //Chunks are cut where the rolling hash has its top 16 bits clear, giving chunks of about 64KB.
+    private static final int MIN_CHUNK = 16384;
+    private static final int MAX_CHUNK = 262144;
+    private static final long CHUNK_MASK = 0xFFFF000000000000L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //The table must never change, or chunks of new backups would no longer match those of older ones.
+        Random random = new Random(0x5350414345L);
+        for(int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final File root;
+    private final File blobs;
+    private final BackupCodecs codecs;
+    private long added = 0L;
+
+    /**
+     * Opens a store.
+     * @param root the root folder of the store.
+     * @param codecs the codecs chunks are compressed with, chosen from the type of their file.
+     */
+    public BackupStore(File root, BackupCodecs codecs) {
+        this.root = root;
+        this.blobs = new File(root, BLOB_DIRECTORY);
+        this.codecs = codecs;
+    }
+
+    /**
+     * Check if a file is the manifest of a backup kept in a store.
+     * @param file the file to check.
+     * @return true if the file is a manifest, false otherwise.
+     */
+    public static boolean isManifest(File file) {
+        File parent = file.getParentFile();
+        return file.getName().endsWith(MANIFEST_EXTENSION) && parent != null
+                && parent.getName().equals(MANIFEST_DIRECTORY);
+    }
+
+    /**
+     * Opens the store holding a manifest.
+     * @param manifest the manifest of a backup kept in the store.
+     * @param codecs the codecs chunks are compressed with, chosen from the type of their file.
+     * @return the store holding the manifest.
+     */
+    public static BackupStore forManifest(File manifest, BackupCodecs codecs) {
+        return new BackupStore(manifest.getAbsoluteFile().getParentFile().getParentFile(), codecs);
+    }
+
+    /**
+     * List the manifests of the backups kept in this store.
+     * @return the manifest files.
+     */
+    public List<File> listManifests() {
+        List<File> manifests = new ArrayList<File>();
+        File[] files = new File(root, MANIFEST_DIRECTORY).listFiles();
+
+        if(files != null)
+            for(File f : files)
+                if(f.isFile() && f.getName().endsWith(MANIFEST_EXTENSION))
+                    manifests.add(f);
+        return manifests;
+    }
+
+    /**
+     * Get the number of bytes of new blobs written by this instance.
+     * @return the number of bytes added to the store.
+     */
+    public long getAdded() {
+        return added;
+    }
+
+    /**
+     * Store a file, writing the chunks the store does not have yet.
+     * @param file the file to store.
+     * @param path the path of the file in the backup.
+     * @param previous the entry of the same file in an earlier backup, reused without reading the file if its size
+     * and modification time did not change, or null.
+     * @return the entry of the file.
+     * @throws IOException if the file cannot be read or a chunk cannot be written.
+     */
+    public Entry store(File file, String path, Entry previous) throws IOException {
+        long lastModified = file.lastModified();
+        path = normalize(path);
+
+        if(previous != null && lastModified != 0L && previous.lastModified == lastModified
+                && previous.size == file.length() && hasBlobs(previous))
+            return previous.withPath(path);
+
+        MessageDigest digest = newDigest();
+        int level = codecs.getLevel(codecs.select(file.getName()));
+        if(isRegion(file)) {
+            Entry entry = storeRegion(digest, file, path, lastModified, level);
+            if(entry != null)
+                return entry;
+        }
+
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte[] readBuffer = new byte[BUFFER_SIZE];
+        byte[] chunk = new byte[MAX_CHUNK];
+        int length = 0;
+        long hash = 0L;
+        long size = 0L;
+        InputStream in = new FileInputStream(file);
+
+        try {
+            int read;
+            while((read = in.read(readBuffer)) != -1) {
+                for(int i = 0; i < read; i++) {
+                    byte b = readBuffer[i];
+                    chunk[length++] = b;
+                    hash = (hash << 1) + GEAR[b & 0xFF];
+
+                    if((length >= MIN_CHUNK && (hash & CHUNK_MASK) == 0L) || length == MAX_CHUNK) {
+                        chunks.add(writeBlob(digest, chunk, length, level));
+                        size += length;
+                        length = 0;
+                        hash = 0L;
+                    }
+                }
+            }
+            if(length > 0) {
+                chunks.add(writeBlob(digest, chunk, length, level));
+                size += length;
+            }
+        } finally {
+            in.close();
+        }
+
+        return new Entry(path, size, lastModified, chunks.toArray(new byte[chunks.size()][]));
+    }
+
+    /**
+     * Store a region file chunk by chunk.
+     * @return the entry of the region, or null if the file is not a valid region and should be stored as any
+     * other file.
+     */
+    private Entry storeRegion(MessageDigest digest, File file, String path, long lastModified, int level)
+            throws IOException {
+        long size = file.length();
+        RegionFileForBackup region = new RegionFileForBackup(file);
+
+        try {
+            List<Integer> slots = new ArrayList<Integer>();
+            for(int i = 0; i < RegionFileForBackup.CHUNK_COUNT; i++)
+                if(region.getOffset(i) != 0)
+                    slots.add(i);
+
+            final int[] offsets = new int[RegionFileForBackup.CHUNK_COUNT];
+            for(int i = 0; i < offsets.length; i++)
+                offsets[i] = region.getOffset(i);
+            //Read the chunks in the order they are laid out in the file.
+            Collections.sort(slots, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int sa = offsets[a] >>> 8;
+                    int sb = offsets[b] >>> 8;
+                    return sa < sb ? -1 : sa > sb ? 1 : 0;
+                }
+            });
+
+            Entry entry = new Entry(path, size, lastModified, new byte[slots.size()][]);
+            entry.slots = new int[slots.size()];
+            entry.offsets = new int[slots.size()];
+            entry.timestamps = new int[slots.size()];
+
+            for(int i = 0; i < slots.size(); i++) {
+                int slot = slots.get(i);
+                byte[] data = region.getChunkBytes(slot);
+                if(data == null || RegionFileForBackup.getPosition(offsets[slot]) + data.length > size)
+                    return null;
+
+                entry.slots[i] = slot;
+                entry.offsets[i] = offsets[slot];
+                entry.timestamps[i] = region.getTimestamp(slot);
+                entry.chunks[i] = writeBlob(digest, data, data.length, level);
+            }
+            return entry;
+        } finally {
+            region.close();
+        }
+    }
+
+    /**
+     * Restore a file from its chunks.
+     * @param entry the entry of the file.
+     * @param dest the file to restore to.
+     * @throws IOException if a chunk is missing or the file cannot be written.
+     */
+    public void restore(Entry entry, File dest) throws IOException {
+        if(entry.slots != null) {
+            restoreRegion(entry, dest);
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0L;
+        OutputStream out = new FileOutputStream(dest);
+
+        try {
+            for(byte[] chunk : entry.chunks) {
+                InputStream in = new InflaterInputStream(new FileInputStream(getBlob(chunk)));
+                try {
+                    int read;
+                    while((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        size += read;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if(size != entry.size)
+            throw new IOException("Restored "+size+" bytes of "+entry.path+" instead of "+entry.size);
+        if(entry.lastModified != 0L)
+            dest.setLastModified(entry.lastModified);
+    }
+
+    /**
+     * Rebuild a region file, putting every chunk back in the sectors it was read from.
+     */
+    private void restoreRegion(Entry entry, File dest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        RandomAccessFile out = new RandomAccessFile(dest, "rw");
+
+        try {
+            out.setLength(0L);
+            out.setLength(entry.size);
+            for(int i = 0; i < entry.slots.length; i++) {
+                out.seek(entry.slots[i] * 4L);
+                out.writeInt(entry.offsets[i]);
+                out.seek(RegionFileForBackup.getTimestampPosition(entry.slots[i]));
+                out.writeInt(entry.timestamps[i]);
+
+                out.seek(RegionFileForBackup.getPosition(entry.offsets[i]));
+                InputStream in = new InflaterInputStream(new FileInputStream(getBlob(entry.chunks[i])));
+                try {
+                    int read;
+                    while((read = in.read(buffer)) != -1)
+                        out.write(buffer, 0, read);
+                } finally {
+                    in.close();
+                }
+            }
+            if(out.length() != entry.size)
+                throw new IOException("Restored "+out.length()+" bytes of "+entry.path+" instead of "+entry.size);
+        } finally {
+            out.close();
+        }
+
+        if(entry.lastModified != 0L)
+            dest.setLastModified(entry.lastModified);
+    }
+
+    /**
+     * Read a manifest.
+     * @param file the manifest file.
+     * @param headerOnly true if only the metadata of the backup should be read, without its entries.
+     * @return the manifest.
+     * @throws IOException if the manifest cannot be read.
+     */
+    public Manifest readManifest(File file, boolean headerOnly) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+        try {
+            if(in.readInt() != MANIFEST_MAGIC)
+                throw new IOException(file.getName()+" is not a backup manifest");
+            byte version = in.readByte();
+            if(version != MANIFEST_VERSION && version != 1)
+                throw new IOException("Manifest version mismatch");
+
+            Manifest manifest = new Manifest(in.readUTF(), in.readUTF(), in.readLong());
+            manifest.size = in.readLong();
+            manifest.added = in.readLong();
+            if(headerOnly)
+                return manifest;
+
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte type = version == 1 ? ENTRY_CHUNKS : in.readByte();
+                byte[][] chunks = new byte[in.readInt()][];
+                Entry entry = new Entry(path, size, lastModified, chunks);
+
+                if(type == ENTRY_REGION) {
+                    entry.slots = new int[chunks.length];
+                    entry.offsets = new int[chunks.length];
+                    entry.timestamps = new int[chunks.length];
+                }
+                for(int j = 0; j < chunks.length; j++) {
+                    if(type == ENTRY_REGION) {
+                        entry.slots[j] = in.readShort();
+                        entry.offsets[j] = in.readInt();
+                        entry.timestamps[j] = in.readInt();
+                    }
+                    chunks[j] = new byte[HASH_LENGTH];
+                    in.readFully(chunks[j]);
+                }
+                manifest.entries.put(path, entry);
+            }
+            return manifest;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a manifest. The manifest is written to a temporary file first, so a backup either has a complete
+     * manifest or none at all.
+     * @param file the manifest file.
+     * @param manifest the manifest to write.
+     * @throws IOException if the manifest cannot be written.
+     */
+    public void writeManifest(File file, Manifest manifest) throws IOException {
+        File tmp = new File(file.getPath()+".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeByte(MANIFEST_VERSION);
+            out.writeUTF(manifest.name);
+            out.writeUTF(manifest.uid);
+            out.writeLong(manifest.date);
+            out.writeLong(manifest.size);
+            out.writeLong(manifest.added);
+            out.writeInt(manifest.entries.size());
+            for(Entry entry : manifest.entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeByte(entry.slots == null ? ENTRY_CHUNKS : ENTRY_REGION);
+                out.writeInt(entry.chunks.length);
+                for(int i = 0; i < entry.chunks.length; i++) {
+                    if(entry.slots != null) {
+                        out.writeShort(entry.slots[i]);
+                        out.writeInt(entry.offsets[i]);
+                        out.writeInt(entry.timestamps[i]);
+                    }
+                    out.write(entry.chunks[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if(!tmp.renameTo(file)) {
+            file.delete();
+            if(!tmp.renameTo(file))
+                throw new IOException("Could not move "+tmp+" to "+file);
+        }
+    }
+
+    /**
+     * Hash a chunk and write it to the store, unless the store already has it.
+     */
+    private byte[] writeBlob(MessageDigest digest, byte[] chunk, int length, int level) throws IOException {
+        digest.reset();
+        digest.update(chunk, 0, length);
+        byte[] hash = digest.digest();
+        File blob = getBlob(hash);
+
+        if(blob.exists())
+            return hash;
+
+        blob.getParentFile().mkdirs();
+        File tmp = new File(blob.getPath()+".tmp");
+        Deflater deflater = new Deflater(level);
+        try {
+            OutputStream out = new DeflaterOutputStream(new FileOutputStream(tmp), deflater, BUFFER_SIZE);
+            try {
+                out.write(chunk, 0, length);
+            } finally {
+                out.close();
+            }
+        } finally {
+            deflater.end();
+        }
+
+        long size = tmp.length();
+        if(!tmp.renameTo(blob) && !blob.exists())
+            throw new IOException("Could not move "+tmp+" to "+blob);
+        tmp.delete();
+        added += size;
+        return hash;
+    }
+
+    /**
+     * Check if the store has every chunk of an entry.
+     */
+    private boolean hasBlobs(Entry entry) {
+        for(byte[] chunk : entry.chunks)
+            if(!getBlob(chunk).isFile())
+                return false;
+        return true;
+    }
+
+    private File getBlob(byte[] hash) {
+        String name = toHex(hash);
+        return new File(new File(blobs, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Check if a file holds the chunks of a world in the region format.
+     */
+    private static boolean isRegion(File file) {
+        String name = file.getName();
+        return (name.endsWith(".mca") || name.endsWith(".mcr")) && RegionFileForBackup.hasTables(file);
+    }
+
+    private static String normalize(String path) {
+        return path.replace('\\', '/');
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available: "+e.getMessage());
+        }
+    }
+
+    /**
+     * The list of files of a backup, with the metadata of the backup
+     */
+    public static class Manifest {
+        String name;
+        String uid;
+        long date;
+        long size = 0L;
+        long added = 0L;
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        Manifest(String name, String uid, long date) {
+            this.name = name;
+            this.uid = uid;
+            this.date = date;
+        }
+
+        /**
+         * Add the entry of a file to the manifest.
+         * @param entry the entry to add.
+         */
+        void add(Entry entry) {
+            Entry old = entries.put(entry.path, entry);
+            if(old != null)
+                size -= old.size;
+            size += entry.size;
+        }
+
+        /**
+         * Get the entry of a file.
+         * @param path the path of the file in the backup.
+         * @return the entry of the file, or null if the backup does not have it.
+         */
+        Entry get(String path) {
+            return entries.get(normalize(path));
+        }
+
+        /**
+         * Build the file index of the backup.
+         * @return the tree of the files of the backup.
+         */
+        FSTree toTree() {
+            FSTree tree = new FSTree();
+            for(Entry entry : entries.values())
+                tree.add(entry.path, entry.size, entry.lastModified);
+            return tree;
+        }
+
+        /**
+         * Get the total size of the files of the backup.
+         * @return the logical size of the backup, measured in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the number of bytes the backup added to the store, the rest being shared with other backups.
+         * @return the physical size of the backup, measured in bytes.
+         */
+        public long getAdded() {
+            return added;
+        }
+    }
+
+    /**
+     * A file of a backup, as the list of the hashes of its chunks. The entry of a region file also has the place
+     * of each chunk in the region and the time it was saved.
+     */
+    public static class Entry {
+        final String path;
+        final long size;
+        final long lastModified;
+        final byte[][] chunks;
+        int[] slots;
+        int[] offsets;
+        int[] timestamps;
+
+        Entry(String path, long size, long lastModified, byte[][] chunks) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Get a copy of this entry for another path.
+         */
+        Entry withPath(String path) {
+            Entry entry = new Entry(path, size, lastModified, chunks);
+            entry.slots = slots;
+            entry.offsets = offsets;
+            entry.timestamps = timestamps;
+            return entry;
+        }
+    }
+}
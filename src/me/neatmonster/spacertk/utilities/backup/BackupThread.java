@@ -24,6 +24,7 @@ import me.neatmonster.spacertk.event.BackupEvent;
 import me.neatmonster.spacertk.utilities.FSTree;
 import me.neatmonster.spacertk.utilities.Utilities;
 import me.neatmonster.spacertk.utilities.backup.BackupManager.Backup;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -31,6 +32,7 @@ import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.util.List;
+import java.util.zip.Deflater;
 
 class BackupThread extends Thread {
     private boolean isolated = false;
@@ -39,35 +41,45 @@ class BackupThread extends Thread {
     private TFile sourceRoot;
     private TFile destRoot;
     private TFile base;
+    private TFile previousRoot;
     private URI userDir;
     private boolean clearDst;
     private List<URI> ignoreList;
     private boolean printData;
+    private final Object updateLock = new Object();
+    private long updates = 0L;
     Backup backup;
     boolean offline;
-    long startTime = -1L;
-    long endTime = -1L;
-    String status = "Idle";
-    String error = "";
+    volatile long startTime = -1L;
+    volatile long endTime = -1L;
+    volatile String status = "Idle";
+    volatile String error = "";
     String backupName;
     String uid;
-    String currentFile;
-    long dataSize = 0L;
-    long dataCopied = 0L;
-    float progress = 0.0f;
-    boolean running = false;
-
-    public BackupThread(boolean printData, boolean sendEvent, String backupName, String uid, File base, URI userDir, List<URI> ignoreList,
-            boolean clearDst, boolean offline, File destRoot, File sourceRoot, File... additionalSources) {
+    volatile String baseUid;
+    volatile String currentFile;
+    volatile long dataSize = 0L;
+    volatile long dataCopied = 0L;
+    volatile float progress = 0.0f;
+    volatile boolean running = false;
+    int compressionThreads = 1;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    String codecSelection = BackupCodecs.DEFAULT_SELECTION;
+
+    public BackupThread(boolean printData, boolean sendEvent, String backupName, String uid, String baseUid, File base, URI userDir,
+            List<URI> ignoreList, boolean clearDst, boolean offline, File previousRoot, File destRoot, File sourceRoot,
+            File... additionalSources) {
         this.printData = printData;
         this.sendEvent = sendEvent;
         this.base = new TFile(base);
         this.userDir = userDir;
         this.backupName = backupName;
         this.uid = uid;
+        this.baseUid = baseUid;
         this.clearDst = clearDst;
         this.ignoreList = ignoreList;
         this.offline = offline;
+        this.previousRoot = previousRoot == null ? null : new TFile(previousRoot);
         this.destRoot = new TFile(destRoot);
         this.sourceRoot = new TFile(sourceRoot);
         this.additionalSources = additionalSources;
@@ -84,6 +96,14 @@ class BackupThread extends Thread {
             return;
 
         FSTree sourceTree;
+        FSTree previousTree = null;
+        TFile[] archives = null;
+        BackupStore store = null;
+        BackupStore.Manifest manifest = null;
+        BackupStore.Manifest previousManifest = null;
+        boolean fromStore = BackupStore.isManifest(sourceRoot);
+        ParallelZipWriter zipWriter = null;
+        BackupCodecs codecs = new BackupCodecs(codecSelection, compressionLevel);
         ObjectInputStream oi = null;
         ObjectOutputStream oo = null;
         PrintWriter fOut = null;
@@ -95,6 +115,7 @@ class BackupThread extends Thread {
             printData("startTime:="+startTime);
             printData("status:="+status);
         }
+        changed();
 
         try {
             TFile sourceFile = new TFile(sourceRoot);
@@ -102,11 +123,22 @@ class BackupThread extends Thread {
             TFile backupMeta = new TFile(sourceRoot, "backup.info");
 
             //Initialise the file index.
-            if(backupIndex.exists()) {
+            if(fromStore) {
+                store = BackupStore.forManifest(sourceRoot, codecs);
+                manifest = store.readManifest(sourceRoot, false);
+                sourceTree = manifest.toTree();
+            } else if(backupIndex.exists()) {
                 oi = new ObjectInputStream(new TFileInputStream(backupIndex));
                 sourceTree = (FSTree)oi.readObject();
                 base = sourceRoot;
                 oi.close();
+
+                //An incremental backup only holds the files that changed since its base, which are given (newest
+                //first) as additional sources.
+                archives = new TFile[1 + (additionalSources == null ? 0 : additionalSources.length)];
+                archives[0] = sourceRoot;
+                for(int i = 1; i < archives.length; i++)
+                    archives[i] = new TFile(additionalSources[i - 1]);
             } else {
                 sourceTree = Utilities.buildFSTree(new TFile(sourceRoot), base);
                 if(additionalSources != null) {
@@ -115,6 +147,36 @@ class BackupThread extends Thread {
                         sourceTree.merge(tree);
                     }
                 }
+
+                if(BackupStore.isManifest(destRoot)) {
+                    //Manifests list every file, so backups kept in a store are never incremental. The manifest of
+                    //an earlier backup only spares reading the files that did not change.
+                    store = BackupStore.forManifest(destRoot, codecs);
+                    manifest = new BackupStore.Manifest(backupName, uid, startTime);
+                    if(previousRoot != null && BackupStore.isManifest(previousRoot)) {
+                        try {
+                            previousManifest = store.readManifest(previousRoot, false);
+                        } catch(IOException e) {
+                            System.err.println("Could not read the manifest of "+previousRoot.getName()+": "+e.getMessage());
+                        }
+                    }
+                    baseUid = null;
+                } else if(previousRoot != null) {
+                    try {
+                        oi = new ObjectInputStream(new TFileInputStream(new TFile(previousRoot, "backup.index")));
+                        previousTree = (FSTree)oi.readObject();
+                        oi.close();
+                    } catch(IOException e) {
+                        System.err.println("Could not read the index of backup "+baseUid+", performing a full backup: "+e.getMessage());
+                        previousTree = null;
+                        baseUid = null;
+                    }
+                } else {
+                    baseUid = null;
+                }
+                if(printData) {
+                    printData("baseUid:="+(baseUid == null ? "" : baseUid));
+                }
             }
             //Remove ignored files from the index
             for(URI u : ignoreList)
@@ -122,20 +184,34 @@ class BackupThread extends Thread {
             sourceTree.remove(base.getName()+"/"+"backup.index");
             sourceTree.remove(base.getName()+"/"+"backup.info");
 
-            if(sourceFile.isArchive())
-                dataSize = Utilities.getFileSize(sourceFile.toNonArchiveFile());
+            List<String> sourceFiles;
+            if(previousTree != null)
+                sourceFiles = sourceTree.enumerateChanged(previousTree, null);
             else
+                sourceFiles = sourceTree.enumerateLeaves(null);
+            previousTree = null;
+
+            if(sourceFile.isArchive()) {
+                for(TFile archive : archives == null ? new TFile[]{sourceFile} : archives)
+                    dataSize += Utilities.getFileSize(archive.toNonArchiveFile());
+            } else if(baseUid != null) {
+                for(String path : sourceFiles)
+                    dataSize += sourceTree.get(path).getSize();
+            } else {
                 dataSize = sourceTree.getSize();
+            }
 
             if(printData) {
                 printData("dataSize:="+dataSize);
             }
+            changed();
 
             if(clearDst) {
                 status = "Wiping out destination directories";
                 if(printData) {
                     printData("status:="+status);
                 }
+                changed();
 
                 if(destRoot.isArchive())
                     destRoot.toNonArchiveFile().rm();
@@ -150,35 +226,59 @@ class BackupThread extends Thread {
                 }
             }
 
-            if(!backupIndex.exists()) {
-                backupIndex = new TFile(destRoot, "backup.index");
-                if(!destRoot.exists())
-                    new TFile(destRoot).mkdirs();
-                oo = new ObjectOutputStream(new TFileOutputStream(backupIndex));
-                oo.writeObject(sourceTree);
-                oo.close();
+            //New archives are written by a pool of compressors rather than through TrueZIP, one file at a time.
+            if(store == null && archives == null && destRoot.isArchive())
+                zipWriter = new ParallelZipWriter(destRoot.toNonArchiveFile(), Math.max(1, compressionThreads), codecs);
+
+            if(store == null && !backupIndex.exists()) {
+                if(zipWriter != null) {
+                    ByteArrayOutputStream index = new ByteArrayOutputStream();
+                    oo = new ObjectOutputStream(index);
+                    oo.writeObject(sourceTree);
+                    oo.close();
+                    zipWriter.add("backup.index", index.toByteArray());
+                } else {
+                    backupIndex = new TFile(destRoot, "backup.index");
+                    if(!destRoot.exists())
+                        new TFile(destRoot).mkdirs();
+                    oo = new ObjectOutputStream(new TFileOutputStream(backupIndex));
+                    oo.writeObject(sourceTree);
+                    oo.close();
+                }
             }
 
-            if(!backupMeta.exists()) {
-                backupMeta = new TFile(destRoot, "backup.info");
-                if(!destRoot.exists())
-                    new TFile(destRoot).mkdirs();
-                fOut = new PrintWriter(new TFileOutputStream(backupMeta));
+            if(store == null && !backupMeta.exists()) {
+                ByteArrayOutputStream meta = new ByteArrayOutputStream();
+                if(zipWriter != null) {
+                    fOut = new PrintWriter(meta);
+                } else {
+                    backupMeta = new TFile(destRoot, "backup.info");
+                    if(!destRoot.exists())
+                        new TFile(destRoot).mkdirs();
+                    fOut = new PrintWriter(new TFileOutputStream(backupMeta));
+                }
                 fOut.println("name:"+backupName);
                 fOut.println("uid:"+ uid);
                 fOut.println("date:"+startTime);
                 fOut.println("size:"+dataSize);
+                if(baseUid != null)
+                    fOut.println("base:"+baseUid);
+                if(zipWriter != null) {
+                    fOut.println("codecs:"+codecs);
+                    fOut.println("level:"+codecs.getLevel());
+                }
                 fOut.close();
+                if(zipWriter != null)
+                    zipWriter.add("backup.info", meta.toByteArray());
 
-                Backup backup = new Backup(uid, backupName, startTime, dataSize, destRoot);
+                Backup backup = new Backup(uid, backupName, startTime, dataSize, baseUid, destRoot);
                 this.backup = backup;
             }
 
-            List<String> sourceFiles = sourceTree.enumerateLeaves(null);
             sourceTree.removeAll();
 
             for(String path : sourceFiles) {
-                TFile src = new TFile(base, path);
+                TFile src = archives == null ? new TFile(base, path) : locate(archives, path);
                 TFile dst = new TFile(destRoot, path);
                 status = "Processing "+src.getName();
                 currentFile = src.getName();
@@ -188,39 +288,81 @@ class BackupThread extends Thread {
                     printData("currentFile:="+currentFile);
                 }
 
-                if(!dst.isDirectory())
-                    dst.getParentFile().mkdirs();
-                else
-                    dst.mkdirs();
+                if(store != null && fromStore) {
+                    BackupStore.Entry entry = manifest.get(path);
+                    try {
+                        if(entry == null)
+                            throw new IOException(path+" is missing from the manifest of "+sourceRoot.getName());
+                        dst.getParentFile().mkdirs();
+                        store.restore(entry, dst);
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                    if(entry != null)
+                        dataCopied += entry.size;
+                } else if(store != null) {
+                    File file = src.isArchive() ? src.toNonArchiveFile() : src;
+                    try {
+                        manifest.add(store.store(file, path, previousManifest == null ? null : previousManifest.get(path)));
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                    dataCopied += Utilities.getFileSize(file);
+                } else if(zipWriter != null) {
+                    dataCopied += zipWriter.add(path, src.isArchive() ? src.toNonArchiveFile() : src);
+                } else {
+                    if(!dst.isDirectory())
+                        dst.getParentFile().mkdirs();
+                    else
+                        dst.mkdirs();
+
+                    try {
+                        if(!src.isArchive())
+                            src.cp_p(dst);
+                        else
+                            src.toNonArchiveFile().cp_p(dst.toNonArchiveFile());
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
 
-                try {
-                    if(!src.isArchive())
-                        src.cp_p(dst);
+                    if(sourceFile.isArchive())
+                        dataCopied += src.length();
                     else
-                        src.toNonArchiveFile().cp_p(dst.toNonArchiveFile());
-                } catch(IOException e) {
-                    e.printStackTrace();
+                        dataCopied += Utilities.getFileSize(src);
                 }
 
-                if(sourceFile.isArchive())
-                    dataCopied += src.length();
-                else
-                    dataCopied += Utilities.getFileSize(src);
-
 
                 progress = dataCopied / (dataSize + (0.15f * dataSize));
                 if(printData) {
                     printData("dataCopied:="+dataCopied);
                     printData("progress:="+progress);
                 }
+                changed();
 
             }
 
+            if(zipWriter != null) {
+                status = "Writing "+destRoot.getName();
+                if(printData) {
+                    printData("status:="+status);
+                }
+                changed();
+                dataCopied += zipWriter.close();
+                zipWriter = null;
+            }
+
+            if(store != null && !fromStore) {
+                manifest.added = store.getAdded();
+                store.writeManifest(destRoot, manifest);
+                this.backup = new Backup(uid, backupName, startTime, manifest.getSize(), null, destRoot);
+            }
+
             progress = 0.85f; //Temporary
 
             if(printData) {
                 printData("progress:="+progress);
             }
+            changed();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -243,6 +385,8 @@ class BackupThread extends Thread {
                 printData("status:="+status);
             }
         } finally {
+            if(zipWriter != null)
+                zipWriter.abort();
             try { //Attempt to close the streams again in the case that an exception was thrown before closing them.
                 if(oi != null)
                     oi.close();
@@ -267,12 +411,31 @@ class BackupThread extends Thread {
                     printData("status:="+status);
                 }
             }
+            changed();
             try {
                 TVFS.umount(sourceRoot);
             } catch(FsSyncException e){
                 e.printStackTrace();
             }
 
+            if(archives != null) {
+                for(int i = 1; i < archives.length; i++) {
+                    try {
+                        TVFS.umount(archives[i]);
+                    } catch(FsSyncException e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            if(previousRoot != null && previousRoot.isArchive()) {
+                try {
+                    TVFS.umount(previousRoot);
+                } catch(FsSyncException e){
+                    e.printStackTrace();
+                }
+            }
+
             try {
                 TVFS.umount(destRoot);
             } catch(FsSyncException e){
@@ -294,6 +457,7 @@ class BackupThread extends Thread {
                 printData("endTime:="+endTime);
                 printData("progress:="+progress);
             }
+            changed();
 
             if(sendEvent) {
                 BackupEvent e = new BackupEvent(startTime, endTime, offline, backupName, uid);
@@ -306,6 +470,60 @@ class BackupThread extends Thread {
         return destRoot;
     }
 
+    /**
+     * Finds the newest archive of a backup chain holding a file.
+     * @param archives Archives of the chain, newest first
+     * @param path Path of the file relative to the archives
+     * @return The file in the newest archive holding it, or in the first archive if none does
+     */
+    private static TFile locate(TFile[] archives, String path) {
+        for(TFile archive : archives) {
+            TFile file = new TFile(archive, path);
+            if(file.exists())
+                return file;
+        }
+        return new TFile(archives[0], path);
+    }
+
+    /**
+     * Signals that the state of the operation changed, waking up the threads waiting for an update
+     */
+    void changed() {
+        synchronized(updateLock) {
+            updates++;
+            updateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of times the state of the operation changed
+     * @return Number of updates
+     */
+    long getUpdates() {
+        synchronized(updateLock) {
+            return updates;
+        }
+    }
+
+    /**
+     * Waits for the state of the operation to change
+     * @param seen Number of updates already seen by the caller
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return Number of updates, the same as seen if the timeout expired first
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    long awaitUpdate(long seen, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized(updateLock) {
+            long remaining = timeout;
+            while(updates == seen && remaining > 0L) {
+                updateLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return updates;
+        }
+    }
+
     private void printData(String s) {
         System.out.print(s + BackupManager.STDOUT_LINE_DELIMITER);
     }
@@ -54,6 +54,8 @@ public class IsolatedBackupLauncher {
         }
         List<URI> ignoreList = new ArrayList<URI>();
         boolean clearDst = Boolean.parseBoolean(settings.get("clearDst"));
+        String baseUid = settings.get("baseUid");
+        File previousRoot = null;
         File destRoot = new File(settings.get("destRoot"));
         File sourceRoot = new File(settings.get("sourceRoot"));
         List<File> additionalSrcList = new ArrayList<File>();
@@ -68,15 +70,28 @@ public class IsolatedBackupLauncher {
         }
 
         for(String s : settings.get("additionalSources").split(","))
-            additionalSrcList.add(new File(s));
+            if(!s.isEmpty())
+                additionalSrcList.add(new File(s));
+
+        if(baseUid != null && baseUid.isEmpty())
+            baseUid = null;
+        if(settings.get("previousRoot") != null && !settings.get("previousRoot").isEmpty())
+            previousRoot = new File(settings.get("previousRoot"));
 
         additionalSources = new File[additionalSrcList.size()];
         for(int i = 0; i < additionalSources.length; i++)
             additionalSources[i] = additionalSrcList.get(i);
 
 
-        BackupThread bThread = new BackupThread(true, false, backupName, uid, base, userDir, ignoreList,
-                clearDst, true, destRoot, sourceRoot, additionalSources);
+        BackupThread bThread = new BackupThread(true, false, backupName, uid, baseUid, base, userDir, ignoreList,
+                clearDst, true, previousRoot, destRoot, sourceRoot, additionalSources);
+
+        if(settings.get("compressionThreads") != null)
+            bThread.compressionThreads = Integer.parseInt(settings.get("compressionThreads"));
+        if(settings.get("compressionLevel") != null)
+            bThread.compressionLevel = Integer.parseInt(settings.get("compressionLevel"));
+        if(settings.get("codecs") != null)
+            bThread.codecSelection = settings.get("codecs");
 
         bThread.start();
 
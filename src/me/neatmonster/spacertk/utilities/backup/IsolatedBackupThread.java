@@ -38,19 +38,22 @@ public class IsolatedBackupThread extends BackupThread {
     private TFile sourceRoot;
     private TFile destRoot;
     private TFile base;
+    private TFile previousRoot;
     private URI userDir;
     private boolean clearDst;
     private List<URI> ignoreList;
     private ProcessBuilder pBuilder;
 
-    public IsolatedBackupThread(String backupName, String uid, File base, URI userDir, List<URI> ignoreList,
-            boolean clearDst, File destRoot, File sourceRoot, File... additionalSources) throws IOException{
+    public IsolatedBackupThread(String backupName, String uid, String baseUid, File base, URI userDir, List<URI> ignoreList,
+            boolean clearDst, File previousRoot, File destRoot, File sourceRoot, File... additionalSources) throws IOException{
         this.base = new TFile(base);
         this.userDir = userDir;
         this.backupName = backupName;
         this.uid = uid;
+        this.baseUid = baseUid;
         this.clearDst = clearDst;
         this.ignoreList = ignoreList;
+        this.previousRoot = previousRoot == null ? null : new TFile(previousRoot);
         this.destRoot = new TFile(destRoot);
         this.sourceRoot = new TFile(sourceRoot);
         this.additionalSources = additionalSources;
@@ -95,6 +98,11 @@ public class IsolatedBackupThread extends BackupThread {
         pBuilder = new ProcessBuilder(jvmCommand, maxMem,"-cp", artifactPath, IsolatedBackupLauncher.class.getName(),
                 "backupName:="+backupName, "uid:="+uid, "baseDir:="+base.getCanonicalPath(), "userDir:="+userDir.getRawPath(),
                 "ignoreList:="+ignore, "clearDst:="+clearDst, "additionalSources:="+additional,
+                "baseUid:="+(baseUid == null ? "" : baseUid),
+                "previousRoot:="+(previousRoot == null ? "" : previousRoot.getCanonicalPath()),
+                "compressionThreads:="+BackupManager.getCompressionThreads(),
+                "compressionLevel:="+BackupManager.getCompressionLevel(),
+                "codecs:="+BackupManager.getCodecSelection(),
                 "sourceRoot:="+sourceRoot.getCanonicalPath(), "destRoot:="+destRoot.getCanonicalPath());
     }
 
@@ -131,11 +139,13 @@ public class IsolatedBackupThread extends BackupThread {
                 Runtime.getRuntime().removeShutdownHook(shutdownHook);
 
             running = false;
-            backup = new BackupManager.Backup(uid, backupName, startTime, dataSize, destRoot);
+            if(destRoot.isArchive() || BackupStore.isManifest(destRoot)) //Restores are made to folders, and do not produce a backup.
+                backup = new BackupManager.Backup(uid, backupName, startTime, dataSize, baseUid, destRoot);
 
             running = false;
             if(endTime == -1L)
                 endTime = System.currentTimeMillis();
+            changed();
 
             BackupEvent e = new BackupEvent(startTime, endTime, offline, backupName, uid);
             SpaceModule.getInstance().getEdt().fireToolkitEvent(e);
@@ -206,6 +216,9 @@ public class IsolatedBackupThread extends BackupThread {
         } else if(split[0].equals("error")) {
             error = split[1];
 
+        } else if(split[0].equals("baseUid")) {
+            baseUid = split.length > 1 ? split[1] : null;
+
         } else if(split[0].equals("currentFile")) {
             currentFile = split[1];
 
@@ -218,6 +231,7 @@ public class IsolatedBackupThread extends BackupThread {
         } else if(split[0].equals("progress")) {
             progress = Float.parseFloat(split[1]);
         }
+        changed();
 
     }
 
@@ -0,0 +1,466 @@
+/*
+* This file is part of SpaceRTK (http://spacebukkit.xereo.net/).
+*
+* SpaceRTK is free software: you can redistribute it and/or modify it under the terms of the
+* Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license as published by the Creative Common organization,
+* either version 3.0 of the license, or (at your option) any later version.
+*
+* SpaceRTK is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+* warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the Attribution-NonCommercial-ShareAlike
+* Unported (CC BY-NC-SA) license for more details.
+*
+* You should have received a copy of the Attribution-NonCommercial-ShareAlike Unported (CC BY-NC-SA) license along with
+* this program. If not, see <http://creativecommons.org/licenses/by-nc-sa/3.0/>.
+*/
+package me.neatmonster.spacertk.utilities.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import me.neatmonster.spacertk.utilities.NamedThreadFactory;
+
+/**
+ * Writes a zip archive whose entries are compressed in parallel, each by a worker of a pool, then written in the
+ * order they were added. Each entry is stored or deflated as chosen by its codec. Compressed entries are kept in memory up to a shared budget, and spilled to temporary
+ * files beyond it.
+ *
+ * Sizes and CRCs are known when an entry is written, so entries have no data descriptors. Zip64 records are
+ * written when an entry, the archive or the number of entries outgrows the classic format.
+ */
+class ParallelZipWriter {
+    private static final int BUFFER_SIZE = 65536;
+    private static final long MEMORY_BUDGET = 64L * 1024L * 1024L;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final OutputStream out;
+    private final File file;
+    private final BackupCodecs codecs;
+    private final int window;
+    private final ExecutorService workers;
+    private final AtomicLong memory = new AtomicLong(MEMORY_BUDGET);
+    private final LinkedList<Future<Compressed>> pending = new LinkedList<Future<Compressed>>();
+    private final List<Compressed> written = new ArrayList<Compressed>();
+    private long offset = 0L;
+
+    /**
+     * Creates a new archive.
+     * @param file the archive to write.
+     * @param threads the number of entries compressed at the same time.
+     * @param codecs the codecs of the entries.
+     * @throws IOException if the archive cannot be created.
+     */
+    ParallelZipWriter(File file, int threads, BackupCodecs codecs) throws IOException {
+        this.file = file;
+        this.codecs = codecs;
+        this.window = threads * 2;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("SpaceRTK Backup Compressor"));
+    }
+
+    /**
+     * Queue a file to be compressed and written to the archive.
+     * @param name the name of the entry.
+     * @param source the file to read the entry from.
+     * @return the uncompressed size of the entries written while waiting for room in the queue.
+     * @throws IOException if the archive cannot be written.
+     */
+    long add(final String name, final File source) throws IOException {
+        return queue(new Callable<Compressed>() {
+            public Compressed call() throws IOException {
+                InputStream in = new FileInputStream(source);
+                try {
+                    return compress(name, source.lastModified(), in);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue data to be compressed and written to the archive.
+     * @param name the name of the entry.
+     * @param data the content of the entry.
+     * @return the uncompressed size of the entries written while waiting for room in the queue.
+     * @throws IOException if the archive cannot be written.
+     */
+    long add(final String name, final byte[] data) throws IOException {
+        final long time = System.currentTimeMillis();
+        return queue(new Callable<Compressed>() {
+            public Compressed call() throws IOException {
+                return compress(name, time, new ByteArrayInputStream(data));
+            }
+        });
+    }
+
+    /**
+     * Write the remaining entries and the central directory, and close the archive.
+     * @return the uncompressed size of the remaining entries.
+     * @throws IOException if the archive cannot be written.
+     */
+    long close() throws IOException {
+        long size = 0L;
+        try {
+            while(!pending.isEmpty())
+                size += writeNext();
+            writeCentralDirectory();
+        } finally {
+            abort();
+        }
+        return size;
+    }
+
+    /**
+     * Stop compressing and close the archive, leaving it incomplete.
+     */
+    void abort() {
+        workers.shutdownNow();
+        try {
+            out.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        for(Future<Compressed> future : pending)
+            discard(future);
+        pending.clear();
+    }
+
+    private long queue(Callable<Compressed> task) throws IOException {
+        long size = 0L;
+        while(pending.size() >= window)
+            size += writeNext();
+        pending.add(workers.submit(task));
+        return size;
+    }
+
+    /**
+     * Wait for the oldest queued entry to be compressed, and write it.
+     */
+    private long writeNext() throws IOException {
+        Future<Compressed> future = pending.removeFirst();
+        Compressed entry;
+        try {
+            entry = future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing "+file.getName());
+        } catch(ExecutionException e) {
+            //Like a failed copy, a file that cannot be read is left out of the archive.
+            e.getCause().printStackTrace();
+            return 0L;
+        }
+
+        try {
+            entry.offset = offset;
+            writeLocalHeader(entry);
+            entry.data.writeTo(out);
+            offset += entry.compressedSize;
+            written.add(entry);
+            return entry.size;
+        } finally {
+            entry.data.release();
+        }
+    }
+
+    private void discard(Future<Compressed> future) {
+        try {
+            if(future.isDone() && !future.isCancelled())
+                future.get().data.release();
+        } catch(Exception e) {
+            //Failed entries hold nothing.
+        }
+    }
+
+    /**
+     * Compress an entry with its codec, computing its CRC on the way.
+     */
+    private Compressed compress(String name, long time, InputStream in) throws IOException {
+        Compressed entry = new Compressed(name.replace('\\', '/'), time);
+        BackupCodecs.Codec codec = codecs.select(entry.name);
+        Deflater deflater = codec == BackupCodecs.Codec.STORE ? null : new Deflater(codecs.getLevel(codec), true);
+        CRC32 crc = new CRC32();
+        byte[] input = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+        entry.method = deflater == null ? METHOD_STORED : METHOD_DEFLATED;
+
+        try {
+            int read;
+            while((read = in.read(input)) != -1) {
+                crc.update(input, 0, read);
+                entry.size += read;
+                if(deflater == null) {
+                    entry.data.write(input, 0, read);
+                    continue;
+                }
+                deflater.setInput(input, 0, read);
+                while(!deflater.needsInput())
+                    entry.data.write(output, 0, deflater.deflate(output));
+            }
+            if(deflater != null) {
+                deflater.finish();
+                while(!deflater.finished())
+                    entry.data.write(output, 0, deflater.deflate(output));
+            }
+            entry.data.close();
+        } catch(IOException e) {
+            entry.data.release();
+            throw e;
+        } finally {
+            if(deflater != null)
+                deflater.end();
+        }
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = entry.data.size;
+        return entry;
+    }
+
+    private void writeLocalHeader(Compressed entry) throws IOException {
+        boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+        byte[] name = entry.name.getBytes("UTF-8");
+
+        writeInt(0x04034b50);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64 ? ZIP64_LIMIT : entry.compressedSize);
+        writeInt(zip64 ? ZIP64_LIMIT : entry.size);
+        writeShort(name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if(zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+        offset += 30 + name.length + (zip64 ? 20 : 0);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = offset;
+
+        for(Compressed entry : written) {
+            boolean bigSize = entry.size >= ZIP64_LIMIT;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_LIMIT;
+            boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+            int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            boolean zip64 = extra > 0;
+            byte[] name = entry.name.getBytes("UTF-8");
+
+            writeInt(0x02014b50);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(FLAG_UTF8);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(bigCompressed ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(bigSize ? ZIP64_LIMIT : entry.size);
+            writeShort(name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0); //Comment length
+            writeShort(0); //Disk number
+            writeShort(0); //Internal attributes
+            writeInt(0L); //External attributes
+            writeInt(bigOffset ? ZIP64_LIMIT : entry.offset);
+            out.write(name);
+            if(extra > 0) {
+                writeShort(0x0001);
+                writeShort(extra);
+                if(bigSize)
+                    writeLong(entry.size);
+                if(bigCompressed)
+                    writeLong(entry.compressedSize);
+                if(bigOffset)
+                    writeLong(entry.offset);
+            }
+            offset += 46 + name.length + (extra > 0 ? extra + 4 : 0);
+        }
+
+        long size = offset - start;
+        int count = written.size();
+        if(count >= ZIP64_ENTRY_LIMIT || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT) {
+            long record = offset;
+            writeInt(0x06064b50);
+            writeLong(44L); //Size of the rest of the record
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0L); //Disk number
+            writeInt(0L); //Disk of the central directory
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(start);
+
+            writeInt(0x07064b50);
+            writeInt(0L); //Disk of the zip64 end record
+            writeLong(record);
+            writeInt(1L); //Number of disks
+        }
+
+        writeInt(0x06054b50);
+        writeShort(0); //Disk number
+        writeShort(0); //Disk of the central directory
+        writeShort(Math.min(count, ZIP64_ENTRY_LIMIT));
+        writeShort(Math.min(count, ZIP64_ENTRY_LIMIT));
+        writeInt(Math.min(size, ZIP64_LIMIT));
+        writeInt(Math.min(start, ZIP64_LIMIT));
+        writeShort(0); //Comment length
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long v) throws IOException {
+        writeShort((int)(v & 0xFFFF));
+        writeShort((int)((v >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & 0xFFFFFFFFL);
+        writeInt(v >>> 32);
+    }
+
+    /**
+     * Converts a time to the MS-DOS format used by zip archives.
+     */
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if(year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((long)(year - 1980) << 25) | ((long)(calendar.get(Calendar.MONTH) + 1) << 21)
+                | ((long)calendar.get(Calendar.DAY_OF_MONTH) << 16) | ((long)calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | ((long)calendar.get(Calendar.MINUTE) << 5) | ((long)calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * An entry compressed by a worker
+     */
+    private class Compressed {
+        final String name;
+        final long dosTime;
+        final SpillBuffer data = new SpillBuffer();
+        long size = 0L;
+        long compressedSize = 0L;
+        long crc;
+        long offset;
+        int method;
+
+        Compressed(String name, long time) {
+            this.name = name;
+            this.dosTime = toDosTime(time);
+        }
+    }
+
+    /**
+     * Holds compressed data in memory while the shared budget allows it, in a temporary file otherwise
+     */
+    private class SpillBuffer extends OutputStream {
+        private final List<byte[]> blocks = new ArrayList<byte[]>();
+        private long reserved = 0L;
+        private File spill;
+        private OutputStream spillOut;
+        long size = 0L;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return;
+            size += len;
+            if(spillOut == null) {
+                long left = memory.addAndGet(-len);
+                if(left >= 0L) {
+                    reserved += len;
+                    byte[] block = new byte[len];
+                    System.arraycopy(b, off, block, 0, len);
+                    blocks.add(block);
+                    return;
+                }
+                memory.addAndGet(len);
+                spill = File.createTempFile("spacertk-backup", ".tmp");
+                spill.deleteOnExit();
+                spillOut = new BufferedOutputStream(new FileOutputStream(spill), BUFFER_SIZE);
+            }
+            spillOut.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(spillOut != null)
+                spillOut.close();
+        }
+
+        /**
+         * Copy the buffered data to a stream.
+         */
+        void writeTo(OutputStream target) throws IOException {
+            for(byte[] block : blocks)
+                target.write(block);
+            if(spill != null) {
+                InputStream in = new FileInputStream(spill);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while((read = in.read(buffer)) != -1)
+                        target.write(buffer, 0, read);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        /**
+         * Give the memory back to the budget and delete the temporary file.
+         */
+        void release() {
+            blocks.clear();
+            memory.addAndGet(reserved);
+            reserved = 0L;
+            try {
+                if(spillOut != null)
+                    spillOut.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            if(spill != null)
+                spill.delete();
+        }
+    }
+}